@@ -28,4 +28,7 @@ public abstract class AbstractChefHandler extends RootyHandlerBase {
 
     public File getChefDirFile () { return new File(getChefDir()); }
 
+    // handler bookkeeping lives next to the chef dir (not in it), so it is never copied into staging dirs
+    public File getChefStateDir () { return FileUtil.mkdirOrDie(new File(getChefDirFile().getParentFile(), ".chef-state")); }
+
 }
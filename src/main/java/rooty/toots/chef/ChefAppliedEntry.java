@@ -0,0 +1,42 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * One record in the ChefAppliedLedger: a change that was applied to the chef dir, or a later
+ * record marking that change as reverted (because its generation was rolled back).
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ChefAppliedEntry {
+
+    public ChefAppliedEntry(ChefMessage message, long start, Long generation) {
+        this.fingerprint = message.getFingerprint();
+        this.operation = message.getOperation();
+        this.cookbook = message.getCookbook();
+        this.ctime = System.currentTimeMillis();
+        this.duration = ctime - start;
+        this.generation = generation;
+    }
+
+    @Getter @Setter private String fingerprint;
+    @Getter @Setter private ChefOperation operation;
+    @Getter @Setter private String cookbook;
+    @Getter @Setter private long ctime;
+    @Getter @Setter private long duration;
+
+    // the chef dir generation this change was committed in, when generations are in use
+    @Getter @Setter private Long generation;
+
+    @Getter @Setter private boolean reverted = false;
+
+    public ChefAppliedEntry revert() {
+        final ChefAppliedEntry entry = new ChefAppliedEntry()
+                .setFingerprint(fingerprint).setOperation(operation).setCookbook(cookbook)
+                .setCtime(System.currentTimeMillis()).setDuration(duration).setGeneration(generation);
+        return entry.setReverted(true);
+    }
+
+}
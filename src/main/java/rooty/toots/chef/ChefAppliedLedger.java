@@ -0,0 +1,145 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Append-only record of the changes ChefHandler has applied, replacing the one-file-per-fingerprint
+ * chefDir/applied directory. Lives in the chef state dir, so it is never copied into staging dirs or backups.
+ *
+ * The ledger is a file of JSON lines; the latest record for each fingerprint is kept in memory for lookups,
+ * along with the full history since the last compaction. When superseded records outnumber current ones,
+ * the file is rewritten with only the latest record per fingerprint.
+ */
+@Slf4j
+public class ChefAppliedLedger {
+
+    public static final String LEDGER_FILE = "applied.jsonl";
+    public static final String LEGACY_APPLIED_DIR = "applied";
+
+    // don't bother compacting until the ledger has at least this many records
+    public static final int MIN_COMPACT_SIZE = 1000;
+
+    private final File file;
+    private final Map<String, ChefAppliedEntry> latest = new HashMap<>();
+    private final List<ChefAppliedEntry> history = new ArrayList<>();
+
+    public ChefAppliedLedger(File stateDir) {
+        this.file = new File(stateDir, LEDGER_FILE);
+        load();
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8cs))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) continue;
+                try {
+                    index(fromJsonOrDie(line, ChefAppliedEntry.class));
+                } catch (Exception e) {
+                    log.warn("load: skipping unreadable record in "+abs(file)+": "+line);
+                }
+            }
+        } catch (IOException e) {
+            log.error("load: error reading "+abs(file)+": "+e, e);
+        }
+    }
+
+    private void index(ChefAppliedEntry entry) {
+        latest.put(entry.getFingerprint(), entry);
+        history.add(entry);
+    }
+
+    public synchronized boolean isApplied(String fingerprint) {
+        final ChefAppliedEntry entry = latest.get(fingerprint);
+        return entry != null && !entry.isReverted();
+    }
+
+    public synchronized void record(ChefAppliedEntry entry) throws IOException {
+        append(Collections.singletonList(entry));
+        if (history.size() >= MIN_COMPACT_SIZE && history.size() > 2 * latest.size()) compact();
+    }
+
+    /** Mark every change committed after the given generation as reverted. */
+    public synchronized void revertAfter(long generation) throws IOException {
+        final List<ChefAppliedEntry> reverts = new ArrayList<>();
+        for (ChefAppliedEntry entry : latest.values()) {
+            if (!entry.isReverted() && entry.getGeneration() != null && entry.getGeneration() > generation) {
+                reverts.add(entry.revert());
+            }
+        }
+        if (!reverts.isEmpty()) append(reverts);
+    }
+
+    /** @return applied changes, newest first, optionally only those for one cookbook */
+    public synchronized List<ChefAppliedEntry> getHistory(String cookbook, int limit) {
+        final List<ChefAppliedEntry> found = new ArrayList<>();
+        for (ListIterator<ChefAppliedEntry> i = history.listIterator(history.size()); i.hasPrevious() && found.size() < limit;) {
+            final ChefAppliedEntry entry = i.previous();
+            if (cookbook == null || cookbook.equals(entry.getCookbook())) found.add(entry);
+        }
+        return found;
+    }
+
+    private void append(List<ChefAppliedEntry> entries) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), UTF8cs)) {
+            for (ChefAppliedEntry entry : entries) out.write(toJsonOrDie(entry) + "\n");
+        }
+        for (ChefAppliedEntry entry : entries) index(entry);
+    }
+
+    public synchronized void compact() throws IOException {
+        final List<ChefAppliedEntry> keep = new ArrayList<>();
+        for (ChefAppliedEntry entry : history) {
+            if (latest.get(entry.getFingerprint()) == entry) keep.add(entry);
+        }
+        final File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF8cs)) {
+            for (ChefAppliedEntry entry : keep) out.write(toJsonOrDie(entry) + "\n");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("compact: "+history.size()+" records down to "+keep.size());
+        history.clear();
+        history.addAll(keep);
+    }
+
+    /**
+     * Move fingerprints from a legacy chefDir/applied directory into the ledger, then remove the directory.
+     * A rollback to a generation from before the ledger can bring the directory back, so this is checked often.
+     */
+    public synchronized void migrate(File chefDir) throws IOException {
+        final File legacy = new File(chefDir, LEGACY_APPLIED_DIR);
+        final File[] files = legacy.listFiles();
+        if (files == null) return;
+
+        final List<ChefAppliedEntry> entries = new ArrayList<>();
+        for (File f : files) {
+            if (!f.isFile() || isApplied(f.getName())) continue;
+            ChefAppliedEntry entry;
+            try {
+                final ChefMessage message = fromJsonOrDie(FileUtil.toString(f), ChefMessage.class);
+                entry = new ChefAppliedEntry().setFingerprint(f.getName())
+                        .setOperation(message.getOperation()).setCookbook(message.getCookbook());
+            } catch (Exception e) {
+                entry = new ChefAppliedEntry().setFingerprint(f.getName());
+            }
+            entries.add(entry.setCtime(f.lastModified()));
+        }
+        if (!entries.isEmpty()) append(entries);
+        FileUtils.deleteDirectory(legacy);
+        log.info("migrate: moved "+entries.size()+" applied fingerprints from "+abs(legacy)+" into "+abs(file));
+    }
+
+}
@@ -0,0 +1,49 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Which recipes each cookbook in a chef dir has, read with one listing of the cookbooks dir and one listing
+ * per recipes dir, instead of a stat for every cookbook/recipe combination.
+ *
+ * A catalog is a snapshot: build one per operation (a run list calculation, say) and pass it along. Nothing
+ * keeps catalogs around, so none can go stale when a chef dir changes.
+ */
+public class ChefCookbookCatalog {
+
+    public static final String RECIPE_SUFFIX = ".rb";
+
+    @Getter private final File chefDir;
+    private final Map<String, Set<String>> recipes = new HashMap<>();
+
+    public ChefCookbookCatalog(File chefDir) {
+        this.chefDir = chefDir;
+        final File[] cookbooks = new File(chefDir, ChefSolo.COOKBOOKS_DIR).listFiles();
+        if (cookbooks == null) return;
+        for (File cookbook : cookbooks) {
+            final String[] files = new File(cookbook, "recipes").list();
+            if (files == null) continue;
+            final Set<String> names = new HashSet<>(files.length);
+            for (String f : files) {
+                if (f.endsWith(RECIPE_SUFFIX)) names.add(f.substring(0, f.length() - RECIPE_SUFFIX.length()));
+            }
+            recipes.put(cookbook.getName(), names);
+        }
+    }
+
+    public Set<String> getCookbooks() { return Collections.unmodifiableSet(recipes.keySet()); }
+
+    public Set<String> getRecipes(String cookbook) {
+        final Set<String> names = recipes.get(cookbook);
+        return names == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(names);
+    }
+
+    public boolean hasRecipe(String cookbook, String recipeName) {
+        final Set<String> names = recipes.get(cookbook);
+        return names != null && names.contains(recipeName);
+    }
+
+}
@@ -0,0 +1,76 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+
+/**
+ * Reads cookbook dependencies from metadata.rb, and orders a set of cookbook installs into waves:
+ * every cookbook in a wave is independent of the others in that wave, so the whole wave can be installed
+ * in one chef run. A cookbook that depends on another one being installed goes into a later wave.
+ */
+@Slf4j
+public class ChefCookbookDependencies {
+
+    public static final String METADATA_RB = "metadata.rb";
+
+    private static final Pattern DEPENDS_PATTERN = Pattern.compile("^\\s*depends\\s+['\"]([\\w\\-]+)['\"]", Pattern.MULTILINE);
+
+    public static Set<String> dependencies(File cookbookDir) {
+        final Set<String> deps = new LinkedHashSet<>();
+        final File metadata = new File(cookbookDir, METADATA_RB);
+        if (!metadata.exists()) return deps;
+        try {
+            final Matcher matcher = DEPENDS_PATTERN.matcher(FileUtil.toString(metadata));
+            while (matcher.find()) deps.add(matcher.group(1));
+        } catch (Exception e) {
+            log.warn("dependencies: error reading "+abs(metadata)+": "+e);
+        }
+        return deps;
+    }
+
+    public static File overlayCookbookDir(ChefMessage message) {
+        return new File(message.getChefDir() + "/cookbooks/" + message.getCookbook());
+    }
+
+    public static List<List<ChefMessage>> installWaves(List<ChefMessage> messages) {
+        final Map<ChefMessage, Set<String>> deps = new HashMap<>();
+        for (ChefMessage m : messages) deps.put(m, dependencies(overlayCookbookDir(m)));
+
+        final List<List<ChefMessage>> waves = new ArrayList<>();
+        final List<ChefMessage> remaining = new ArrayList<>(messages);
+        while (!remaining.isEmpty()) {
+            final Set<String> pending = new HashSet<>();
+            for (ChefMessage m : remaining) pending.add(m.getCookbook());
+
+            final List<ChefMessage> wave = new ArrayList<>();
+            final Set<String> inWave = new HashSet<>();
+            for (ChefMessage m : remaining) {
+                if (inWave.contains(m.getCookbook())) continue; // same cookbook twice: second one waits
+                boolean blocked = false;
+                for (String dep : deps.get(m)) {
+                    if (!dep.equals(m.getCookbook()) && pending.contains(dep)) { blocked = true; break; }
+                }
+                if (!blocked) {
+                    wave.add(m);
+                    inWave.add(m.getCookbook());
+                }
+            }
+            if (wave.isEmpty()) {
+                // circular dependency: fall back to installing one at a time, in arrival order
+                log.warn("installWaves: circular dependency among "+pending+", installing "+remaining.get(0).getCookbook()+" alone");
+                wave.add(remaining.get(0));
+            }
+            waves.add(wave);
+            remaining.removeAll(wave);
+        }
+        return waves;
+    }
+
+}
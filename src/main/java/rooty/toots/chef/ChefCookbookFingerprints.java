@@ -0,0 +1,103 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+import org.cobbzilla.util.security.ShaUtil;
+import rooty.toots.util.DigestIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static rooty.toots.chef.ChefSolo.*;
+
+/**
+ * Per-cookbook fingerprints of everything a converge of that cookbook reads: its cookbook dir, its data bags
+ * and its data files. The fingerprints from the last successful converge are kept in the chef state dir,
+ * so a delta SYNCHRONIZE can tell which cookbooks actually changed since then.
+ */
+@Slf4j
+public class ChefCookbookFingerprints {
+
+    public static final String FINGERPRINTS_FILE = "cookbook_fingerprints.json";
+    public static final String DIGEST_INDEX_FILE = "cookbook_digests.json";
+
+    @NoArgsConstructor
+    public static class Fingerprints {
+        @Getter @Setter private Map<String, String> cookbooks = new TreeMap<>();
+    }
+
+    private final File stateDir;
+    private final DigestIndex index;
+
+    public ChefCookbookFingerprints(File stateDir) {
+        this.stateDir = stateDir;
+        this.index = new DigestIndex(new File(stateDir, DIGEST_INDEX_FILE));
+    }
+
+    private File fingerprintsFile() { return new File(stateDir, FINGERPRINTS_FILE); }
+
+    public synchronized Map<String, String> load() {
+        final File file = fingerprintsFile();
+        if (!file.exists()) return new TreeMap<>();
+        try {
+            return fromJsonOrDie(FileUtil.toString(file), Fingerprints.class).getCookbooks();
+        } catch (Exception e) {
+            log.warn("load: error reading "+abs(file)+", treating all cookbooks as changed: "+e);
+            return new TreeMap<>();
+        }
+    }
+
+    public synchronized void save(Map<String, String> fingerprints) throws IOException {
+        final Fingerprints toSave = new Fingerprints();
+        toSave.getCookbooks().putAll(fingerprints);
+        final File file = fingerprintsFile();
+        final File temp = new File(stateDir, "." + file.getName() + ".tmp");
+        FileUtil.toFile(temp, toJsonOrDie(toSave));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.save();
+    }
+
+    public Map<String, String> compute(File chefDir, Collection<String> cookbooks) throws IOException {
+        final Map<String, String> fingerprints = new TreeMap<>();
+        for (String cookbook : cookbooks) fingerprints.put(cookbook, fingerprint(chefDir, cookbook));
+        return fingerprints;
+    }
+
+    public String fingerprint(File chefDir, String cookbook) throws IOException {
+        final StringBuilder b = new StringBuilder();
+        for (String dir : new String[] {COOKBOOKS_DIR, DATABAGS_DIR, DATAFILES_DIR}) {
+            final Path base = new File(chefDir, dir + "/" + cookbook).toPath();
+            if (!Files.isDirectory(base)) continue;
+            final List<String> lines = new ArrayList<>();
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) lines.add(base.relativize(file) + ":" + index.sha(file.toFile()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(lines);
+            b.append(dir).append("\n");
+            for (String line : lines) b.append(line).append("\n");
+        }
+        return ShaUtil.sha256_hex(b.toString());
+    }
+
+    /** @return the cookbooks whose fingerprint differs from (or is missing in) the previous set */
+    public static Set<String> changed(Map<String, String> previous, Map<String, String> current) {
+        final Set<String> changed = new LinkedHashSet<>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) changed.add(entry.getKey());
+        }
+        return changed;
+    }
+
+}
@@ -1,17 +1,36 @@
 package rooty.toots.chef;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.io.CompositeBufferedFilesystemWatcher;
+import rooty.toots.metrics.InMemoryMetricsRegistry;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.DigestIndex;
+import rooty.toots.util.TreeSync;
+import rooty.toots.util.TreeSyncResult;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.WatchEvent;
-import java.util.List;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static rooty.toots.chef.ChefSolo.*;
 
+/**
+ * Keeps a target chef dir merged from a set of base chef dirs.
+ *
+ * Buffered watch events are mapped back to the paths they affect and only those paths are synced. Watch events
+ * only carry a file name (relative to whichever directory was being watched), so names are resolved through an
+ * index of the base dirs' contents. A full merge is done on overflow, on a manual fire(), or whenever an event
+ * names something the index does not know about (a newly created file); the index is rebuilt after each full merge.
+ */
 @Slf4j
 public class ChefDirSynchronizer extends CompositeBufferedFilesystemWatcher {
 
@@ -22,6 +41,11 @@ public class ChefDirSynchronizer extends CompositeBufferedFilesystemWatcher {
     @Getter private File target;
     private int errorCount = 0;
 
+    @Getter @Setter private MetricsRegistry metrics = new InMemoryMetricsRegistry();
+
+    // file name -> paths (relative to a base dir) with that name
+    private Map<String, Set<String>> nameIndex = null;
+
     public ChefDirSynchronizer (String[] paths, File target) {
         super(CHEF_FS_EVENTS_TIMEOUT, MAX_CHEF_FS_EVENTS, paths);
         this.target = target;
@@ -34,12 +58,28 @@ public class ChefDirSynchronizer extends CompositeBufferedFilesystemWatcher {
     public void fire() { fire(null); }
 
     @Override public synchronized void fire(List<WatchEvent<?>> events) {
+        final long start = Metrics.now();
         try {
             if (!isEmpty() || events == null) {
-                ChefSolo.merge(dirsWatching(), target);
+                if (events != null) metrics.increment("chef.sync.events", events.size());
+                final Set<String> affected = events == null ? null : affectedPaths(events);
+                final TreeSyncResult result;
+                if (affected == null) {
+                    metrics.increment("chef.sync.full");
+                    result = ChefSolo.merge(dirsWatching(), target);
+                    nameIndex = buildNameIndex();
+                } else {
+                    metrics.increment("chef.sync.targeted");
+                    result = syncPaths(affected);
+                }
+                metrics.increment("chef.sync.files.copied", result.getFilesCopied());
+                log.info("fire: "+(events == null ? "manual" : events.size()+" events")+", "
+                        +(affected == null ? "full merge" : affected.size()+" paths")+", "
+                        +result.getFilesCopied()+" files copied");
                 errorCount = 0;
             }
         } catch (IOException e) {
+            metrics.increment("chef.sync.errors");
             log.warn("Error merging chef dir: " + e, e);
             if (errorCount++ > MAX_CHEF_SYNC_ERRORS) {
                 final String msg = "Too many errors sync'ing chef dir (" + MAX_CHEF_SYNC_ERRORS + "), dying";
@@ -49,7 +89,129 @@ public class ChefDirSynchronizer extends CompositeBufferedFilesystemWatcher {
                 }
                 die(msg, e);
             }
+        } finally {
+            metrics.time("chef.sync.fire", start);
+        }
+    }
+
+    /**
+     * @return paths relative to a base dir that need syncing, or null if a full merge is required
+     */
+    protected Set<String> affectedPaths(List<WatchEvent<?>> events) throws IOException {
+        if (nameIndex == null) return null;
+        final Set<String> affected = new LinkedHashSet<>();
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) return null;
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) continue; // merge never deletes
+            if (!(event.context() instanceof Path)) return null;
+
+            final Path path = (Path) event.context();
+            if (path.isAbsolute()) {
+                final String relative = relativeToBase(path);
+                if (relative == null) return null;
+                affected.add(relative);
+            } else {
+                final String name = path.getFileName().toString();
+                if (name.equals(SOLO_JSON)) continue; // never merged
+                final Set<String> matches = nameIndex.get(name);
+                if (matches == null) return null; // something new
+                affected.addAll(matches);
+            }
+        }
+        return affected;
+    }
+
+    private String relativeToBase(Path path) {
+        for (File base : dirsWatching()) {
+            final Path basePath = base.toPath().toAbsolutePath();
+            if (path.startsWith(basePath)) return basePath.relativize(path).toString();
+        }
+        return null;
+    }
+
+    private TreeSyncResult syncPaths(Set<String> paths) throws IOException {
+        // resolve the winning source for each path first -- later base dirs override earlier ones, same as a
+        // full merge -- so each final file is written once, and never with content that is about to be overridden
+        final Set<String> dirs = new TreeSet<>();
+        final Map<String, File> files = new TreeMap<>();
+        for (File base : dirsWatching()) {
+            for (String path : paths) {
+                final File source = new File(base, path);
+                if (source.isDirectory()) {
+                    collect(base.toPath(), source.toPath(), dirs, files);
+                } else if (source.exists()) {
+                    files.put(path, source);
+                }
+            }
+        }
+
+        final DigestIndex index = new DigestIndex(syncIndexFile(target));
+        final TreeSync treeSync = new TreeSync().setIndex(index);
+        final TreeSyncResult result = new TreeSyncResult();
+        try {
+            for (String dir : dirs) {
+                final File d = new File(target, dir);
+                if (!d.isDirectory()) {
+                    mkdirOrDie(d);
+                    result.getCreatedDirs().add(abs(d));
+                }
+            }
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                treeSync.syncFile(entry.getValue(), new File(target, entry.getKey()), result);
+            }
+        } finally {
+            index.save();
+        }
+        return result;
+    }
+
+    private static void collect(final Path basePath, Path dir, final Set<String> dirs, final Map<String, File> files) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                dirs.add(basePath.relativize(d).toString());
+                return FileVisitResult.CONTINUE;
+            }
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.put(basePath.relativize(file).toString(), file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private Map<String, Set<String>> buildNameIndex() throws IOException {
+        final Map<String, Set<String>> index = new HashMap<>();
+        for (File base : dirsWatching()) {
+            final Path basePath = base.toPath();
+            final File[] topLevel = base.listFiles();
+            if (topLevel == null) continue;
+            for (File f : topLevel) {
+                if (f.isFile() && !f.getName().equals(SOLO_JSON)) addToIndex(index, f.getName(), f.getName());
+            }
+            for (String dir : ChefMergePlanner.MERGED_DIRS) {
+                final Path merged = basePath.resolve(dir);
+                if (!Files.isDirectory(merged)) continue;
+                Files.walkFileTree(merged, new SimpleFileVisitor<Path>() {
+                    @Override public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                        addToIndex(index, d.getFileName().toString(), basePath.relativize(d).toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+                    @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        addToIndex(index, file.getFileName().toString(), basePath.relativize(file).toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+        return index;
+    }
+
+    private static void addToIndex(Map<String, Set<String>> index, String name, String path) {
+        Set<String> paths = index.get(name);
+        if (paths == null) {
+            paths = new HashSet<>();
+            index.put(name, paths);
         }
+        paths.add(path);
     }
 
 }
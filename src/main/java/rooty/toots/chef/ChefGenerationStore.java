@@ -0,0 +1,210 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.cobbzilla.util.security.ShaUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+
+/**
+ * A content-addressed store of chef dir generations, replacing full .backup_ copies.
+ *
+ * File contents live once in objects/ab/abcdef... keyed by SHA-256; each generation is a small manifest
+ * in manifests/N.json, and the current generation is the "current" symlink, swapped atomically by rename.
+ * Snapshots only hash files whose size or mtime changed since the previous generation.
+ * Objects are always copied, never linked, so later in-place edits to the chef dir cannot corrupt the store.
+ */
+@Slf4j
+public class ChefGenerationStore {
+
+    public static final String OBJECTS_DIR = "objects";
+    public static final String MANIFESTS_DIR = "manifests";
+    public static final String CURRENT = "current";
+
+    @Getter private final File root;
+
+    public ChefGenerationStore(File root) { this.root = mkdirOrDie(root); }
+
+    private File objectsDir() { return mkdirOrDie(new File(root, OBJECTS_DIR)); }
+    private File manifestsDir() { return mkdirOrDie(new File(root, MANIFESTS_DIR)); }
+    private File manifestFile(long generation) { return new File(manifestsDir(), generation + ".json"); }
+
+    public File objectFile(String sha) { return new File(objectsDir(), sha.substring(0, 2) + "/" + sha); }
+
+    public synchronized List<Long> getGenerations() {
+        final List<Long> generations = new ArrayList<>();
+        final File[] manifests = manifestsDir().listFiles();
+        if (manifests != null) {
+            for (File f : manifests) {
+                final String name = f.getName();
+                if (!name.endsWith(".json")) continue;
+                try {
+                    generations.add(Long.parseLong(name.substring(0, name.length() - ".json".length())));
+                } catch (NumberFormatException e) {
+                    log.warn("getGenerations: ignoring unrecognized manifest: "+abs(f));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    public synchronized ChefManifest getCurrent() {
+        final File current = new File(root, CURRENT);
+        if (!Files.isSymbolicLink(current.toPath())) return null;
+        try {
+            final Path target = Files.readSymbolicLink(current.toPath());
+            return readManifest(root.toPath().resolve(target).toFile());
+        } catch (IOException e) {
+            log.warn("getCurrent: error reading current generation: "+e);
+            return null;
+        }
+    }
+
+    public ChefManifest getManifest(long generation) {
+        final File f = manifestFile(generation);
+        return f.exists() ? readManifest(f) : null;
+    }
+
+    private ChefManifest readManifest(File f) { return fromJsonOrDie(FileUtil.toStringOrDie(f), ChefManifest.class); }
+
+    /**
+     * Record the contents of dir as a new generation and make it current
+     */
+    public synchronized ChefManifest snapshot(File dir, String label) throws IOException {
+        final ChefManifest previous = getCurrent();
+        final List<Long> generations = getGenerations();
+        final long generation = generations.isEmpty() ? 1 : generations.get(generations.size()-1) + 1;
+        final ChefManifest manifest = new ChefManifest(generation).setLabel(label);
+
+        final Path base = dir.toPath();
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (!d.equals(base)) manifest.getDirs().add(base.relativize(d).toString());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String path = base.relativize(file).toString();
+                if (attrs.isSymbolicLink()) {
+                    manifest.getFiles().put(path, new ChefManifestEntry().setLink(Files.readSymbolicLink(file).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+                final long mtime = attrs.lastModifiedTime().toMillis();
+                final ChefManifestEntry prev = previous == null ? null : previous.getFiles().get(path);
+                final String sha;
+                if (prev != null && prev.getLink() == null && prev.getSize() == attrs.size() && prev.getMtime() == mtime
+                        && objectFile(prev.getSha()).exists()) {
+                    sha = prev.getSha();
+                } else {
+                    sha = store(file.toFile());
+                }
+                manifest.getFiles().put(path, new ChefManifestEntry(sha, attrs.size(), mtime, Files.isExecutable(file), null));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        final File manifestFile = manifestFile(generation);
+        final File temp = new File(manifestsDir(), "." + manifestFile.getName() + ".tmp");
+        FileUtil.toFileOrDie(temp, toJsonOrDie(manifest));
+        Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        setCurrent(generation);
+        return manifest;
+    }
+
+    private String store(File file) throws IOException {
+        final String sha = ShaUtil.sha256_file(file);
+        final File object = objectFile(sha);
+        if (!object.exists()) {
+            mkdirOrDie(object.getParentFile());
+            final File temp = new File(object.getParentFile(), "." + sha + ".tmp" + System.nanoTime());
+            Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return sha;
+    }
+
+    /**
+     * Atomically point "current" at the given generation
+     */
+    public synchronized void setCurrent(long generation) throws IOException {
+        if (!manifestFile(generation).exists()) die("setCurrent: no such generation: "+generation);
+        final Path link = new File(root, CURRENT).toPath();
+        final Path temp = new File(root, "." + CURRENT + ".tmp" + System.nanoTime()).toPath();
+        Files.createSymbolicLink(temp, Paths.get(MANIFESTS_DIR, generation + ".json"));
+        Files.move(temp, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the files of a generation into an empty directory
+     */
+    public void materialize(ChefManifest manifest, File dir) throws IOException {
+        mkdirOrDie(dir);
+        for (String d : manifest.getDirs()) mkdirOrDie(new File(dir, d));
+        for (Map.Entry<String, ChefManifestEntry> entry : manifest.getFiles().entrySet()) {
+            final File target = new File(dir, entry.getKey());
+            mkdirOrDie(target.getParentFile());
+            final ChefManifestEntry e = entry.getValue();
+            if (e.getLink() != null) {
+                Files.createSymbolicLink(target.toPath(), Paths.get(e.getLink()));
+                continue;
+            }
+            final File object = objectFile(e.getSha());
+            if (!object.exists()) die("materialize: missing object "+e.getSha()+" for "+entry.getKey());
+            Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (e.isExecutable() && !target.setExecutable(true, false)) {
+                log.warn("materialize: error setting executable bit on "+abs(target));
+            }
+            if (!target.setLastModified(e.getMtime())) log.warn("materialize: error setting mtime on "+abs(target));
+        }
+    }
+
+    /**
+     * Remove all but the newest keep generations (never the current one), then delete unreferenced objects
+     * @return the number of objects deleted
+     */
+    public synchronized int gc(int keep) {
+        final ChefManifest current = getCurrent();
+        final List<Long> generations = getGenerations();
+        for (int i=0; i<generations.size()-keep; i++) {
+            final long generation = generations.get(i);
+            if (current != null && current.getGeneration() == generation) continue;
+            if (!manifestFile(generation).delete()) log.warn("gc: error deleting manifest for generation "+generation);
+        }
+
+        final Set<String> referenced = new HashSet<>();
+        for (Long generation : getGenerations()) {
+            for (ChefManifestEntry e : getManifest(generation).getFiles().values()) {
+                if (e.getSha() != null) referenced.add(e.getSha());
+            }
+        }
+
+        int deleted = 0;
+        final File[] prefixes = objectsDir().listFiles();
+        if (prefixes == null) return 0;
+        for (File prefix : prefixes) {
+            final File[] objects = prefix.listFiles();
+            if (objects == null) continue;
+            for (File object : objects) {
+                if (!referenced.contains(object.getName())) {
+                    FileUtils.deleteQuietly(object);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+}
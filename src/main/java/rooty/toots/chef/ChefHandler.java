@@ -1,6 +1,7 @@
 package rooty.toots.chef;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -8,17 +9,36 @@ import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.FileUtils;
 import org.cobbzilla.util.io.FileUtil;
 import org.cobbzilla.util.json.JsonUtil;
+import org.cobbzilla.util.security.ShaUtil;
 import org.cobbzilla.util.system.Command;
-import org.cobbzilla.util.system.CommandProgressFilter;
 import org.cobbzilla.util.system.CommandResult;
 import org.cobbzilla.util.system.CommandShell;
 import org.joda.time.LocalDate;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import rooty.RootyMessage;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.LinkTree;
+import rooty.toots.util.TreeSync;
+import rooty.toots.util.TreeSyncResult;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.io.FileUtil.abs;
@@ -32,68 +52,392 @@ public class ChefHandler extends AbstractChefHandler {
 
     public static final ObjectMapper JSON = FULL_MAPPER_ALLOW_COMMENTS;
 
+    // assumed duration of a recipe when no run has timed any recipe yet
+    public static final long DEFAULT_RECIPE_MILLIS = 30000;
+
     @Getter @Setter private String group;
 
+    // max status updates per second while chef runs (0 = update on every progress marker)
+    @Getter @Setter private int progressUpdatesPerSecond = 2;
+
+    @Getter @Setter private ChefStagingMode stagingMode = ChefStagingMode.rsync;
+
+    // if true, keep content-addressed generations of the chef dir instead of full .backup_ copies
+    @Getter @Setter private boolean useGenerations = false;
+    @Getter @Setter private int generationsToKeep = 10;
+
+    // if > 0, messages go through a ChefWorkQueue, and ADDs arriving within this window are installed together
+    @Getter @Setter private long batchWindowMillis = 0;
+
+    @Getter(lazy=true) private final ChefWorkQueue workQueue = initWorkQueue();
+    private ChefWorkQueue initWorkQueue() { return new ChefWorkQueue(this); }
+
+    // if true, SYNCHRONIZE only converges cookbooks whose cookbook dir, data bags or data files changed
+    @Getter @Setter private boolean deltaSynchronize = false;
+
+    @Getter(lazy=true) private final ChefCookbookFingerprints cookbookFingerprints = initCookbookFingerprints();
+    private ChefCookbookFingerprints initCookbookFingerprints() { return new ChefCookbookFingerprints(getChefStateDir()); }
+
+    @Getter(lazy=true) private final ChefRecipeTimings recipeTimings = initRecipeTimings();
+    private ChefRecipeTimings initRecipeTimings() { return new ChefRecipeTimings(getChefStateDir()); }
+
+    @Getter(lazy=true) private final ChefSyncCoalescer syncCoalescer = initSyncCoalescer();
+    private ChefSyncCoalescer initSyncCoalescer() { return new ChefSyncCoalescer(this); }
+
+    // set metricsClass to plug in a MetricsRegistry other than the default in-memory one
+    @Getter @Setter private String metricsClass;
+    @Getter(lazy=true) private final MetricsRegistry metrics = initMetrics();
+    private MetricsRegistry initMetrics() { return Metrics.newRegistry(metricsClass); }
+
+    // leftover staging dirs and old backups are reclaimed in the background
+    @Getter @Setter private int backupsToKeep = 3;
+    @Getter @Setter private long backupBudgetMb = 0; // 0 = no budget, only backupsToKeep applies
+    @Getter @Setter private long reclaimIntervalMinutes = 60;
+    @Getter @Setter private int reclaimOpsPerSecond = 1000;
+
+    @Getter(lazy=true) private final ChefReclaimer reclaimer = initReclaimer();
+    private ChefReclaimer initReclaimer() { return new ChefReclaimer(this); }
+
+    // if true (and stagingMode is rsync), keep a staging dir synced in the background, ready to be claimed
+    @Getter @Setter private boolean prewarmStaging = false;
+
+    @Getter(lazy=true) private final ChefStagingPrewarmer stagingPrewarmer = initStagingPrewarmer();
+    private ChefStagingPrewarmer initStagingPrewarmer() { return new ChefStagingPrewarmer(this); }
+
+    // chef run output is kept for the newest runLogsToKeep runs, up to runLogMaxMb each (oldest output dropped first).
+    // a runLogMaxMb of zero (or less) disables run logs
+    @Getter @Setter private long runLogMaxMb = 16;
+    @Getter @Setter private int runLogsToKeep = 20;
+
+    @Getter(lazy=true) private final ChefRunLogStore runLogStore = initRunLogStore();
+    private ChefRunLogStore initRunLogStore() {
+        return new ChefRunLogStore(new File(getChefStateDir(), "runlogs"), runLogMaxMb * FileUtils.ONE_MB, runLogsToKeep);
+    }
+
+    @Getter(lazy=true) private final ChefAppliedLedger appliedLedger = initAppliedLedger();
+    private ChefAppliedLedger initAppliedLedger() { return new ChefAppliedLedger(getChefStateDir()); }
+
+    @Getter(lazy=true) private final ChefGenerationStore generationStore = initGenerationStore();
+    private ChefGenerationStore initGenerationStore() { return new ChefGenerationStore(new File(getChefStateDir(), "generations")); }
+
+    @Getter(value=AccessLevel.PRIVATE, lazy=true) private final UserPrincipal chefUserPrincipal = initChefUserPrincipal();
+    private UserPrincipal initChefUserPrincipal() {
+        try {
+            return FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(getChefUser());
+        } catch (IOException e) {
+            return die("Error looking up chef user "+getChefUser()+": "+e, e);
+        }
+    }
+
     private static final DateTimeFormatter DFORMAT = DateTimeFormat.forPattern("_yyyyMMdd_");
     private static String dstamp() { return LocalDate.now().toString(DFORMAT); }
 
-    @Override public boolean accepts(RootyMessage message) { return message instanceof ChefMessage; }
+    @Override public boolean accepts(RootyMessage message) {
+        return message instanceof ChefMessage
+                || message instanceof ChefHistoryMessage
+                || message instanceof ChefMetricsMessage
+                || message instanceof ChefRunLogMessage;
+    }
 
     @Override
-    public synchronized boolean process(RootyMessage message) {
-
+    public boolean process(RootyMessage message) {
+        if (message instanceof ChefMetricsMessage) {
+            message.setResults(JsonUtil.toJsonOrDie(getMetrics().getSnapshot()));
+            return true;
+        }
+        if (message instanceof ChefHistoryMessage) {
+            final ChefHistoryMessage historyMessage = (ChefHistoryMessage) message;
+            message.setResults(JsonUtil.toJsonOrDie(getAppliedLedger().getHistory(historyMessage.getCookbook(), historyMessage.getLimit())));
+            return true;
+        }
+        if (message instanceof ChefRunLogMessage) return processRunLog((ChefRunLogMessage) message);
         final ChefMessage chefMessage = (ChefMessage) message;
+        if (batchWindowMillis > 0) return getWorkQueue().submit(chefMessage);
+        if (chefMessage.isSynchronize()) return getSyncCoalescer().submit(chefMessage);
+        return processMessage(chefMessage);
+    }
+
+    private boolean processRunLog(ChefRunLogMessage message) {
+        try {
+            if (runLogMaxMb <= 0) die("run logs are disabled");
+            final ChefRunLogStore store = getRunLogStore();
+            if (message.getRunId() == null) {
+                message.setResults(JsonUtil.toJsonOrDie(store.getRuns()));
+            } else if (message.getRecipe() != null) {
+                message.setResults(store.readRecipe(message.getRunId(), message.getRecipe()));
+            } else if (message.getLength() > 0) {
+                message.setResults(store.read(message.getRunId(), message.getOffset(), message.getLength()));
+            } else {
+                message.setResults(JsonUtil.toJsonOrDie(store.getRun(message.getRunId())));
+            }
+        } catch (Exception e) {
+            final String msg = "processRunLog: error reading run log: " + e;
+            message.setError(msg);
+            log.error(msg, e);
+        }
+        return true;
+    }
+
+    protected synchronized boolean processMessage(ChefMessage chefMessage) {
+        return processMessage(chefMessage, Collections.<ChefMessage>emptyList());
+    }
+
+    protected synchronized boolean processSynchronize(ChefSyncCoalescer coalescer, ChefSyncCoalescer.Batch batch) {
+        return processSynchronize(coalescer.close(batch));
+    }
+
+    /**
+     * Run several SYNCHRONIZE requests as one converge. The first message drives the run, the others
+     * follow its progress and get the same result. Messages that want a delta converge and messages that want
+     * a full one are never merged: each kind gets its own run, in order of first arrival. The run is forced
+     * if any message in it asked for forceApply.
+     */
+    protected synchronized boolean processSynchronize(List<ChefMessage> messages) {
+        final Map<Boolean, List<ChefMessage>> byDelta = new LinkedHashMap<>();
+        for (ChefMessage m : messages) {
+            final boolean delta = isDelta(m);
+            if (!byDelta.containsKey(delta)) byDelta.put(delta, new ArrayList<ChefMessage>());
+            byDelta.get(delta).add(m);
+        }
+        boolean result = true;
+        for (List<ChefMessage> group : byDelta.values()) result = synchronizeGroup(group) && result;
+        return result;
+    }
+
+    private boolean synchronizeGroup(List<ChefMessage> messages) {
+        final ChefMessage lead = messages.get(0);
+        final List<ChefMessage> followers = messages.subList(1, messages.size());
+        if (!followers.isEmpty()) log.info("processSynchronize: coalesced "+messages.size()+" SYNCHRONIZE requests into one run");
+
+        boolean force = false;
+        for (ChefMessage m : messages) force = force || m.isForceApply();
+
+        final boolean leadForce = lead.isForceApply();
+        final boolean result;
+        lead.setForceApply(force);
+        try {
+            result = processMessage(lead, followers);
+        } finally {
+            lead.setForceApply(leadForce);
+        }
+        for (ChefMessage m : followers) {
+            m.setResults(lead.getResults());
+            if (lead.getError() != null) m.setError(lead.getError());
+        }
+        return result;
+    }
+
+    private boolean isDelta(ChefMessage chefMessage) {
+        return chefMessage.getDelta() != null ? chefMessage.getDelta() : deltaSynchronize;
+    }
+
+    private boolean processMessage(ChefMessage chefMessage, List<ChefMessage> followers) {
+
         final File chefDir = getChefDirFile();
+        migrateLegacyApplied(chefDir);
+
+        if (chefMessage.isRollback()) {
+            try {
+                rollback(chefMessage);
+            } catch (Exception e) {
+                final String msg = "process: Error rolling back: " + e;
+                chefMessage.setError(msg);
+                log.error(msg, e);
+            }
+            return true;
+        }
 
         // have we already applied this change?
-        final File fpFile = getFingerprintFile(chefDir, chefMessage);
-        if (fpFile.exists() && !chefMessage.isForceApply()) {
+        if (isApplied(chefDir, chefMessage)) return true;
+
+        // copy entire chef dir to a staging dir, work there
+        final long start = System.currentTimeMillis();
+        final File staging = createStagingDir(chefDir, chefMessage.getFingerprint());
+
+        try {
+            apply(chefMessage, staging, followers);
+            commit(chefDir, staging, Collections.singletonList(chefMessage), start);
+
+        } catch (Exception e) {
+            FileUtils.deleteQuietly(staging);
+            final String msg = "process: Error applying chef change: " + e;
+            chefMessage.setError(msg);
+            log.error(msg, e);
+        }
+        return true;
+    }
+
+    private boolean isApplied(File chefDir, ChefMessage chefMessage) {
+        if (getAppliedLedger().isApplied(chefMessage.getFingerprint()) && !chefMessage.isForceApply()) {
             log.warn("process: Change already applied and forceApply == false, not reapplying: "+chefMessage);
             return true;
         }
+        return false;
+    }
 
-        // copy entire chef dir to a staging dir, work there
-        final File staging = createStagingDir(chefDir, chefMessage.getFingerprint());
+    private void migrateLegacyApplied(File chefDir) {
+        try {
+            getAppliedLedger().migrate(chefDir);
+        } catch (IOException e) {
+            log.warn("migrateLegacyApplied: error migrating applied fingerprints: "+e, e);
+        }
+    }
+
+    /**
+     * Install a group of cookbooks. Independent cookbooks are installed together in a single chef run and
+     * committed together; cookbooks that depend on others in the group are installed in later waves.
+     */
+    protected synchronized void processAdds(List<ChefMessage> messages) {
+        final File chefDir = getChefDirFile();
+        migrateLegacyApplied(chefDir);
+        final List<ChefMessage> toApply = new ArrayList<>();
+        for (ChefMessage m : messages) {
+            if (!isApplied(chefDir, m)) toApply.add(m);
+        }
+        for (List<ChefMessage> wave : ChefCookbookDependencies.installWaves(toApply)) {
+            if (wave.size() == 1) {
+                processMessage(wave.get(0));
+            } else {
+                applyCombined(wave);
+            }
+        }
+    }
+
+    private void applyCombined(List<ChefMessage> wave) {
+        final File chefDir = getChefDirFile();
+        final ChefMessage lead = wave.get(0);
+        final List<String> cookbooks = new ArrayList<>(wave.size());
+        final StringBuilder fingerprints = new StringBuilder();
+        for (ChefMessage m : wave) {
+            cookbooks.add(m.getCookbook());
+            fingerprints.append(m.getFingerprint());
+        }
+        log.info("applyCombined: installing "+cookbooks+" in one chef run");
+        final long start = System.currentTimeMillis();
 
+        final File staging = createStagingDir(chefDir, ShaUtil.sha256_hex(fingerprints.toString()));
+        final File runlist = new File(staging.getParentFile(), staging.getName() + "_runlist.json");
         try {
-            apply(chefMessage, staging);
+            final ChefSolo currentChefSolo = JSON.readValue(new File(chefDir, SOLO_JSON), ChefSolo.class);
+            for (ChefMessage m : wave) copyOverlay(m, staging);
+
+            FileUtil.toFileOrDie(runlist, JsonUtil.toJsonOrDie(currentChefSolo.getInstallRunList(cookbooks, staging)));
+            // every message in the wave follows the one run's progress and gets its run log
+            runChefSolo(staging, runlist, lead, wave.subList(1, wave.size()));
+
+            for (String cookbook : cookbooks) currentChefSolo.insertApp(cookbook, staging);
+            writeSoloJson(staging, currentChefSolo);
+            commit(chefDir, staging, wave, start);
+            for (ChefMessage m : wave) {
+                if (m != lead) m.setResults(lead.getResults());
+            }
+
+        } catch (Exception e) {
+            FileUtils.deleteQuietly(staging);
+            final String msg = "process: Error applying combined chef change for "+cookbooks+": " + e;
+            for (ChefMessage m : wave) m.setError(msg);
+            log.error(msg, e);
 
+        } finally {
+            FileUtils.deleteQuietly(runlist);
+        }
+    }
+
+    private void commit(File chefDir, File staging, List<ChefMessage> messages, long start) throws IOException {
+        Long generation = null;
+        if (isUseGenerations()) {
+            generation = commitGeneration(chefDir, staging, messages);
+
+        } else {
             // move current chef dir to backups, move staging in its place
             final File backupDir = new File(chefDir.getParentFile(), ".backup"+dstamp()+System.currentTimeMillis());
-            if (!chefDir.renameTo(backupDir)) {
-                final String msg = "process: Error renaming chefDir (" + abs(chefDir) + ") to backup (" + abs(backupDir) + ")";
-                message.setError(msg);
-                die(msg);
-            }
-            if (!staging.renameTo(chefDir)) {
-                // whoops! rename backup
-                if (!backupDir.renameTo(chefDir)) {
-                    final String msg = "process: Error rolling back!";
-                    message.setError(msg);
-                    die(msg);
-                }
-                final String msg = "Error moving staging dir into place, successfully restore chef-solo dir from backup dir";
+            swapChefDir(chefDir, staging, backupDir, messages.get(0));
+        }
+
+        // record the changes in the ledger; with generations, a rollback marks them reverted
+        for (ChefMessage m : messages) getAppliedLedger().record(new ChefAppliedEntry(m, start, generation));
+        getReclaimer().schedule();
+        if (usePrewarmedStaging()) getStagingPrewarmer().schedule();
+    }
+
+    private void swapChefDir(File chefDir, File replacement, File retired, RootyMessage message) {
+        if (!chefDir.renameTo(retired)) {
+            final String msg = "process: Error renaming chefDir (" + abs(chefDir) + ") to backup (" + abs(retired) + ")";
+            message.setError(msg);
+            die(msg);
+        }
+        if (!replacement.renameTo(chefDir)) {
+            // whoops! rename backup
+            if (!retired.renameTo(chefDir)) {
+                final String msg = "process: Error rolling back!";
                 message.setError(msg);
                 die(msg);
             }
+            final String msg = "Error moving staging dir into place, successfully restore chef-solo dir from backup dir";
+            message.setError(msg);
+            die(msg);
+        }
+    }
+
+    private long commitGeneration(File chefDir, File staging, List<ChefMessage> messages) throws IOException {
+        final ChefGenerationStore store = getGenerationStore();
 
-            // write the fingerprint to the "applied" directory
-            FileUtil.toFileOrDie(fpFile, JsonUtil.toJsonOrDie(chefMessage));
+        // the first time through, record the existing chef dir so there is something to roll back to
+        ChefManifest previous = store.getCurrent();
+        if (previous == null) previous = store.snapshot(chefDir, "initial");
 
+        final StringBuilder label = new StringBuilder();
+        for (ChefMessage m : messages) {
+            if (label.length() > 0) label.append(", ");
+            label.append(m.getOperation()).append(" ").append(m.getCookbook());
+        }
+        final ChefManifest committed = store.snapshot(staging, label.toString());
+        final File retired = new File(chefDir.getParentFile(), ".retired" + dstamp() + System.currentTimeMillis());
+        try {
+            swapChefDir(chefDir, staging, retired, messages.get(0));
+        } catch (RuntimeException e) {
+            store.setCurrent(previous.getGeneration());
+            throw e;
+        }
+        FileUtils.deleteQuietly(retired);
+        store.gc(generationsToKeep);
+        return committed.getGeneration();
+    }
+
+    private void rollback(ChefMessage chefMessage) throws IOException {
+        final ChefGenerationStore store = getGenerationStore();
+        final ChefManifest current = store.getCurrent();
+        Long generation = chefMessage.getGeneration();
+        if (generation == null) {
+            final List<Long> generations = store.getGenerations();
+            final int pos = current == null ? -1 : generations.indexOf(current.getGeneration());
+            if (pos < 1) die("rollback: no previous generation to roll back to");
+            generation = generations.get(pos - 1);
+        }
+        final ChefManifest target = store.getManifest(generation);
+        if (target == null) die("rollback: generation not found: "+generation);
+
+        final File chefDir = getChefDirFile();
+        final File stagingParent = mkdirOrDie(new File(chefDir.getParentFile(), "staging"));
+        final File staging = new File(stagingParent, "chef_rollback_" + generation + "_" + System.currentTimeMillis());
+        try {
+            store.materialize(target, staging);
+            chown(staging);
         } catch (Exception e) {
             FileUtils.deleteQuietly(staging);
-            final String msg = "process: Error applying chef change: " + e;
-            message.setError(msg);
-            log.error(msg, e);
+            throw e;
         }
-        return true;
-    }
 
-    private File getFingerprintFile(File chefDir, ChefMessage chefMessage) {
-        return new File(mkdirOrDie(new File(chefDir, "applied")), chefMessage.getFingerprint());
+        final File retired = new File(chefDir.getParentFile(), ".retired" + dstamp() + System.currentTimeMillis());
+        swapChefDir(chefDir, staging, retired, chefMessage);
+        store.setCurrent(generation);
+        getAppliedLedger().revertAfter(generation);
+        FileUtils.deleteQuietly(retired);
+        getReclaimer().schedule();
+        log.info("rollback: restored generation "+generation+" ("+target.getLabel()+")");
     }
 
-    private void apply (ChefMessage chefMessage, File chefStaging) throws Exception {
+    private void apply (ChefMessage chefMessage, File chefStaging, List<ChefMessage> followers) throws Exception {
 
         final File soloJson = new File(getChefDir(), SOLO_JSON);
 
@@ -105,15 +449,14 @@ public class ChefHandler extends AbstractChefHandler {
         switch (chefMessage.getOperation()) {
             case ADD:
                 // copy overlay cookbooks and databags into staging chef repo
-                rsync(new File(chefMessage.getChefDir()+"/cookbooks/"+cookbook), new File(abs(chefStaging)+"/cookbooks/"+cookbook));
-                rsync(new File(chefMessage.getChefDir()+"/data_bags/"+cookbook), new File(abs(chefStaging)+"/data_bags/"+cookbook));
+                copyOverlay(chefMessage, chefStaging);
 
                 // run chef-solo
                 runChefSolo(chefStaging, "install", cookbook, chefMessage);
 
                 // successfully ran, so add message recipes to run list
                 currentChefSolo.insertApp(cookbook, chefStaging);
-                JsonUtil.FULL_MAPPER.writeValue(new File(chefStaging, SOLO_JSON), currentChefSolo);
+                writeSoloJson(chefStaging, currentChefSolo);
                 break;
 
             case REMOVE:
@@ -122,11 +465,11 @@ public class ChefHandler extends AbstractChefHandler {
 
                 // successfully ran, so remove message recipes from the run list
                 currentChefSolo.removeCookbook(cookbook);
-                JsonUtil.FULL_MAPPER.writeValue(new File(chefStaging, SOLO_JSON), currentChefSolo);
+                writeSoloJson(chefStaging, currentChefSolo);
                 break;
 
             case SYNCHRONIZE:
-                runChefSolo(getChefDirFile(), soloJson, chefMessage);
+                synchronize(chefMessage, soloJson, followers);
                 break;
 
             default:
@@ -134,6 +477,46 @@ public class ChefHandler extends AbstractChefHandler {
         }
     }
 
+    private void synchronize(ChefMessage chefMessage, File soloJson, List<ChefMessage> followers) throws Exception {
+        final File chefDir = getChefDirFile();
+        final ChefCookbookFingerprints fingerprints = getCookbookFingerprints();
+        final ChefSolo chefSolo = JSON.readValue(soloJson, ChefSolo.class);
+        final Map<String, String> current = fingerprints.compute(chefDir, chefSolo.getCookbooks());
+
+        final boolean delta = isDelta(chefMessage);
+        if (delta) {
+            final Set<String> changed = ChefCookbookFingerprints.changed(fingerprints.load(), current);
+            if (changed.isEmpty()) {
+                log.info("synchronize: no cookbooks changed, skipping converge");
+                return;
+            }
+            log.info("synchronize: delta converge of "+changed);
+            final File runlist = new File(getChefStateDir(), "delta_runlist_" + System.currentTimeMillis() + ".json");
+            try {
+                FileUtil.toFileOrDie(runlist, JsonUtil.toJsonOrDie(chefSolo.getDeltaRunList(changed, chefDir)));
+                runChefSolo(chefDir, runlist, chefMessage, followers);
+            } finally {
+                FileUtils.deleteQuietly(runlist);
+            }
+        } else {
+            runChefSolo(chefDir, soloJson, chefMessage, followers);
+        }
+        fingerprints.save(current);
+    }
+
+    private void copyOverlay(ChefMessage chefMessage, File chefStaging) throws IOException {
+        final String cookbook = chefMessage.getCookbook();
+        copyTree(new File(chefMessage.getChefDir()+"/cookbooks/"+cookbook), new File(abs(chefStaging)+"/cookbooks/"+cookbook));
+        copyTree(new File(chefMessage.getChefDir()+"/data_bags/"+cookbook), new File(abs(chefStaging)+"/data_bags/"+cookbook));
+    }
+
+    private void writeSoloJson(File chefStaging, ChefSolo chefSolo) throws IOException {
+        final File soloJson = new File(chefStaging, SOLO_JSON);
+        // a hardlinked staging dir shares solo.json with the live chef dir, don't write through to it
+        LinkTree.breakLink(soloJson);
+        JsonUtil.FULL_MAPPER.writeValue(soloJson, chefSolo);
+    }
+
     protected boolean useSudo () { return true; }
 
     protected void runChefSolo(File chefDir, String script, String cookbook, ChefMessage chefMessage) throws Exception {
@@ -142,22 +525,31 @@ public class ChefHandler extends AbstractChefHandler {
                 .addArgument(script+".sh")
                 .addArgument(cookbook);
 
+        final ChefProgressCallback callback = getChefProgressCallback(chefMessage, Collections.<ChefMessage>emptyList());
+        final ChefRunLog runLog = newRunLog(script + " " + cookbook, chefMessage, Collections.<ChefMessage>emptyList());
         final Command chefCommand = new Command(chefSoloCommand)
                 .setCopyToStandard(true)
                 .setDir(chefDir)
-                .setOut(getChefProgressFilter(new ChefSolo(cookbook, chefDir), chefMessage));
+                .setOut(getChefProgressFilter(new ChefSolo(cookbook, chefDir), chefDir, callback).setTee(runLog));
 
         final CommandResult result;
         try {
             result = CommandShell.exec(chefCommand);
             if (result.hasException()) throw result.getException();
             if (!result.isZeroExitStatus()) die("chef-solo exited with non-zero value: " + result.getExitStatus());
+            getRecipeTimings().record(callback.getDurations());
         } finally {
+            closeRunLog(runLog);
+            callback.flush();
             log.info("chef run completed");
         }
     }
 
     protected void runChefSolo(File chefDir, File runlist, ChefMessage chefMessage) throws Exception {
+        runChefSolo(chefDir, runlist, chefMessage, Collections.<ChefMessage>emptyList());
+    }
+
+    protected void runChefSolo(File chefDir, File runlist, ChefMessage chefMessage, List<ChefMessage> followers) throws Exception {
         CommandLine chefSoloCommand = new CommandLine("sudo")
                 .addArgument("bash")
                 .addArgument("install.sh");
@@ -169,59 +561,129 @@ public class ChefHandler extends AbstractChefHandler {
             soloRunList = fromJson(new File(chefDir, SOLO_JSON), ChefSolo.class);
         }
 
+        final ChefProgressCallback callback = getChefProgressCallback(chefMessage, followers);
+        final ChefRunLog runLog = newRunLog(chefMessage.getOperation() + " " + chefMessage.getCookbook(), chefMessage, followers);
         final Command chefCommand = new Command(chefSoloCommand)
                 .setCopyToStandard(true)
                 .setDir(chefDir)
-                .setOut(getChefProgressFilter(soloRunList, chefMessage));
+                .setOut(getChefProgressFilter(soloRunList, chefDir, callback).setTee(runLog));
 
         final CommandResult result;
         try {
             result = CommandShell.exec(chefCommand);
             if (result.hasException()) throw result.getException();
             if (!result.isZeroExitStatus()) die("chef-solo exited with non-zero value: " + result.getExitStatus());
+            getRecipeTimings().record(callback.getDurations());
         } finally {
+            closeRunLog(runLog);
+            callback.flush();
             log.info("chef run completed");
         }
     }
 
-    private CommandProgressFilter getChefProgressFilter(ChefSolo runList, ChefMessage chefMessage) {
+    // a run log that can't be finished must not mask how the chef run itself went
+    private void closeRunLog(ChefRunLog runLog) {
+        if (runLog == null) return;
+        try {
+            runLog.close();
+        } catch (Exception e) {
+            log.error("closeRunLog: error closing run log "+runLog.getId()+": "+e, e);
+        }
+    }
+
+    /**
+     * @return a new run log, or null if run logs are disabled or one can't be started (a full state disk, say):
+     * the chef run goes ahead either way, just without a tee or a runLogId
+     */
+    ChefRunLog newRunLog(String label, ChefMessage chefMessage, List<ChefMessage> followers) {
+        if (runLogMaxMb <= 0) return null;
+        final ChefRunLog runLog;
+        try {
+            runLog = getRunLogStore().newRun(label);
+        } catch (Exception e) {
+            log.error("newRunLog: error starting run log for "+label+", running without one: "+e, e);
+            return null;
+        }
+        chefMessage.setRunLogId(runLog.getId());
+        for (ChefMessage m : followers) m.setRunLogId(runLog.getId());
+        return runLog;
+    }
+
+    private ChefProgressCallback getChefProgressCallback(ChefMessage chefMessage, List<ChefMessage> followers) {
+        return new ChefProgressCallback(chefMessage, getQueueName(), getStatusManager())
+                .addFollowers(followers)
+                .setMaxUpdatesPerSecond(progressUpdatesPerSecond);
+    }
 
-        final CommandProgressFilter filter = new CommandProgressFilter()
-                .setCallback(new ChefProgressCallback(chefMessage, getQueueName(), getStatusManager()))
+    private ChefProgressFilter getChefProgressFilter(ChefSolo runList, File chefDir, ChefProgressCallback callback) {
+
+        final ChefProgressFilter filter = new ChefProgressFilter(callback)
                 .addIndicator("INFO: Chef-client pid", 1);
 
-        // Skip all "lib" recipes
-        int numEntries = 0;
+        // Skip all "lib" recipes, weight the others by how long they took in previous runs
+        final ChefRecipeTimings timings = getRecipeTimings();
+        final long unknown = timings.average(DEFAULT_RECIPE_MILLIS);
+        final LinkedHashMap<String, Long> expected = new LinkedHashMap<>();
+        long total = 0;
         for (ChefSoloEntry entry : runList.getEntries()) {
-            if (!entry.getRecipe().equals("lib")) numEntries++;
+            if (entry.getRecipe().equals("lib")) continue;
+            final Long known = timings.get(ChefRecipeTimings.key(entry));
+            final long millis = Math.max(1, known == null ? unknown : known);
+            expected.put(ChefRecipeTimings.key(entry), millis);
+            total += millis;
         }
+        callback.setExpected(expected);
 
-        // Leave 20% for the last item (typically a validation step)
-        final int entryDelta = 80 / numEntries;
-        int pct = 0;
+        // each recipe's indicator is the share of expected time elapsed when it starts, within 1-99%
+        long elapsed = 0;
         for (ChefSoloEntry entry : runList.getEntries()) {
-            if (!entry.getRecipe().equals("lib")) {
-                pct += entryDelta;
-                filter.addIndicator(getChefProgressPattern(entry), pct);
-                // todo: check data_bags/app/progress_markers.json for progress markers to add, distribute pro-rata
+            if (entry.getRecipe().equals("lib")) continue;
+            final long millis = expected.get(ChefRecipeTimings.key(entry));
+            final int start = 1 + (int) (98 * elapsed / total);
+            elapsed += millis;
+            final int end = 1 + (int) (98 * elapsed / total);
+            filter.addRecipeIndicator(entry, start);
+
+            // cookbooks can mark milestones within their default recipe, distributed pro-rata over its share
+            if (entry.isRecipe("default")) {
+                for (ChefProgressMarkerSpec marker : ChefProgressMarkerSpec.load(chefDir, entry.getCookbook())) {
+                    filter.addIndicator(marker.getPattern(), start + (end - start) * marker.getPercent() / 100);
+                }
             }
         }
         filter.addIndicator("INFO: Chef Run complete", 100);
         return filter;
     }
 
-    public static String getChefProgressPattern(ChefSoloEntry entry) {
-        return "\\(" + entry.getCookbook() + "::" + entry.getFullRecipeName() + " line \\d+\\)$";
-    }
-
     private File createStagingDir(File chefDir, String hash) {
 
         final File stagingParent = mkdirOrDie(new File(chefDir.getParentFile(), "staging"));
         final File stagingDir;
         final CommandResult result;
         try {
-            stagingDir = mkdirOrDie(new File(stagingParent, "chef" + dstamp() + hash));
-            result = rsync(chefDir, stagingDir);
+            final File target = new File(stagingParent, "chef" + dstamp() + hash);
+            if (usePrewarmedStaging() && !target.exists() && getStagingPrewarmer().claim(target)) return target;
+
+            stagingDir = mkdirOrDie(target);
+            switch (getStagingMode()) {
+                case hardlink:
+                    final long linked = LinkTree.link(chefDir, stagingDir);
+                    log.info("createStagingDir: linked "+linked+" entries into "+abs(stagingDir));
+                    chown(stagingDir);
+                    return stagingDir;
+
+                case reflink:
+                    result = reflink(chefDir, stagingDir);
+                    break;
+
+                default:
+                    if (useInProcessSync()) {
+                        syncInProcess(chefDir, stagingDir);
+                        return stagingDir;
+                    }
+                    result = rsync(chefDir, stagingDir);
+                    break;
+            }
 
         } catch (Exception e) {
             return die("Error backing up chef: " + e, e);
@@ -230,6 +692,67 @@ public class ChefHandler extends AbstractChefHandler {
         return stagingDir;
     }
 
+    private boolean usePrewarmedStaging() { return prewarmStaging && getStagingMode() == ChefStagingMode.rsync; }
+
+    /**
+     * When we are root, files are copied in-process and only the paths the copy touched are chowned;
+     * otherwise it's sudo rsync, then sudo chown -R over the whole destination.
+     */
+    protected boolean useInProcessSync() { return useSudo() && isRoot(); }
+
+    protected boolean isRoot() { return isEffectiveUidZero(); }
+
+    // whether our effective uid is 0: the owner of a file we just created, not a spoofable user.name property
+    @Getter(value=AccessLevel.PRIVATE, lazy=true) private final boolean effectiveUidZero = initEffectiveUidZero();
+    private boolean initEffectiveUidZero() {
+        File probe = null;
+        try {
+            probe = File.createTempFile("uid_probe_", ".tmp", getChefStateDir());
+            return ((Number) Files.getAttribute(probe.toPath(), "unix:uid", LinkOption.NOFOLLOW_LINKS)).intValue() == 0;
+        } catch (Exception e) {
+            log.warn("initEffectiveUidZero: can't determine effective uid, assuming not root: "+e);
+            return false;
+        } finally {
+            if (probe != null) FileUtils.deleteQuietly(probe);
+        }
+    }
+
+    private void copyTree(File from, File to) throws IOException {
+        if (useInProcessSync()) {
+            syncInProcess(from, to);
+        } else {
+            rsync(from, to);
+        }
+    }
+
+    protected TreeSyncResult syncInProcess(File from, File to) throws IOException {
+        mkdirOrDie(to);
+        final TreeSyncResult result = from.exists() ? new TreeSync().sync(from, to) : new TreeSyncResult();
+        chown(to, result);
+        return result;
+    }
+
+    /**
+     * Give the chef user ownership of dir itself, and of what a TreeSync into dir created or changed. The root is
+     * always included: TreeSync never records it when it already existed, which it usually does (createStagingDir
+     * makes it first), and it becomes the live chef dir when staging is swapped in.
+     */
+    protected void chown(File dir, TreeSyncResult result) throws IOException {
+        if (!useInProcessSync()) {
+            if (result.hasChanges()) chown(dir);
+            return;
+        }
+        final UserPrincipal owner = getChefUserPrincipal();
+        setOwner(dir.toPath(), owner);
+        for (List<String> paths : Arrays.asList(result.getCreatedDirs(), result.getCreated(), result.getUpdated())) {
+            for (String path : paths) setOwner(Paths.get(path), owner);
+        }
+    }
+
+    private static void setOwner(Path path, UserPrincipal owner) throws IOException {
+        Files.getFileAttributeView(path, FileOwnerAttributeView.class, LinkOption.NOFOLLOW_LINKS).setOwner(owner);
+    }
+
     protected CommandResult rsync(File from, File to) throws IOException {
         mkdirOrDie(to);
         final CommandLine commandLine = useSudo() ? new CommandLine("sudo").addArgument("rsync") : new CommandLine("rsync");
@@ -237,18 +760,33 @@ public class ChefHandler extends AbstractChefHandler {
                 .addArgument("-ac")
                 .addArgument(abs(from) + "/")
                 .addArgument(abs(to)));
-        if (useSudo()) {
-            final CommandLine chown = new CommandLine("sudo")
-                    .addArgument("chown")
-                    .addArgument("-R")
-                    .addArgument(getChefUser())
-                    .addArgument(abs(to));
-            final CommandResult chownResult = CommandShell.exec(chown);
-            if (!chownResult.isZeroExitStatus()) {
-                die("Error chown'ing destination dir "+to+" to "+getChefUser()+": "+chownResult);
-            }
-        }
+        chown(to);
+        return result;
+    }
+
+    protected CommandResult reflink(File from, File to) throws IOException {
+        mkdirOrDie(to);
+        final CommandLine commandLine = useSudo() ? new CommandLine("sudo").addArgument("cp") : new CommandLine("cp");
+        final CommandResult result = CommandShell.exec(commandLine
+                .addArgument("-a")
+                .addArgument("--reflink=auto")
+                .addArgument(abs(from) + "/.")
+                .addArgument(abs(to)));
+        chown(to);
         return result;
     }
 
+    protected void chown(File dir) throws IOException {
+        if (!useSudo()) return;
+        final CommandLine chown = new CommandLine("sudo")
+                .addArgument("chown")
+                .addArgument("-R")
+                .addArgument(getChefUser())
+                .addArgument(abs(dir));
+        final CommandResult chownResult = CommandShell.exec(chown);
+        if (!chownResult.isZeroExitStatus()) {
+            die("Error chown'ing destination dir "+dir+" to "+getChefUser()+": "+chownResult);
+        }
+    }
+
 }
@@ -0,0 +1,21 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import rooty.RootyMessage;
+
+/**
+ * Ask the ChefHandler for the history of applied changes, newest first, returned as a JSON array of
+ * ChefAppliedEntry in the results
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ChefHistoryMessage extends RootyMessage {
+
+    // if set, only return changes for this cookbook
+    @Getter @Setter private String cookbook;
+
+    @Getter @Setter private int limit = 100;
+
+}
@@ -0,0 +1,27 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One generation of the chef dir: every path (relative to the chef dir) mapped to the object holding its content
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ChefManifest {
+
+    public ChefManifest (long generation) { this.generation = generation; }
+
+    @Getter @Setter private long generation;
+    @Getter @Setter private long ctime = System.currentTimeMillis();
+    @Getter @Setter private String label;
+    @Getter @Setter private List<String> dirs = new ArrayList<>();
+    @Getter @Setter private Map<String, ChefManifestEntry> files = new TreeMap<>();
+
+}
@@ -0,0 +1,20 @@
+package rooty.toots.chef;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true)
+public class ChefManifestEntry {
+
+    @Getter @Setter private String sha;
+    @Getter @Setter private long size;
+    @Getter @Setter private long mtime;
+    @Getter @Setter private boolean executable;
+
+    // if set, this entry is a symlink and sha/size are unused
+    @Getter @Setter private String link;
+
+}
@@ -0,0 +1,21 @@
+package rooty.toots.chef;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * A path provided with different content by more than one base dir. The last base dir wins.
+ */
+@NoArgsConstructor @AllArgsConstructor @ToString
+public class ChefMergeConflict {
+
+    @Getter @Setter private String path;
+    @Getter @Setter private String winner;
+    @Getter @Setter private List<String> overridden;
+
+}
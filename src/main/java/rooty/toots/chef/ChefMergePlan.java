@@ -0,0 +1,17 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * The result of overlaying several base chef dirs: for each relative path, the single source file that wins
+ */
+public class ChefMergePlan {
+
+    @Getter private final Set<String> dirs = new TreeSet<>();
+    @Getter private final Map<String, File> files = new TreeMap<>();
+    @Getter private final List<ChefMergeConflict> conflicts = new ArrayList<>();
+
+}
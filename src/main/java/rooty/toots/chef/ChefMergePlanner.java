@@ -0,0 +1,152 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+import rooty.toots.util.DigestIndex;
+import rooty.toots.util.TreeSync;
+import rooty.toots.util.TreeSyncResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static rooty.toots.chef.ChefSolo.*;
+
+/**
+ * Merges several base chef dirs into one target in a single pass.
+ *
+ * All base dirs are scanned in parallel (a fork-join task per directory), then overlaid in order -- later
+ * base dirs take precedence -- into one plan, recording any path that more than one base dir provides with
+ * different content. Applying the plan writes each final file at most once, instead of once per base dir.
+ */
+@Slf4j
+public class ChefMergePlanner {
+
+    public static final String[] MERGED_DIRS = {COOKBOOKS_DIR, DATABAGS_DIR, DATAFILES_DIR};
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    public static ChefMergePlan plan(List<File> chefBaseDirs, DigestIndex index) {
+
+        // scan everything in parallel
+        final List<ScanTask> scans = new ArrayList<>();
+        for (File base : chefBaseDirs) {
+            FileUtil.assertIsDir(base);
+            for (String dir : MERGED_DIRS) {
+                final File d = new File(base, dir);
+                if (d.isDirectory()) scans.add(new ScanTask(d, dir));
+            }
+        }
+        for (ScanTask scan : scans) pool.execute(scan);
+
+        // overlay in precedence order
+        final ChefMergePlan plan = new ChefMergePlan();
+        final Map<String, List<File>> providers = new HashMap<>();
+        int scanIndex = 0;
+        for (File base : chefBaseDirs) {
+            final Map<String, File> found = new LinkedHashMap<>();
+            for (String dir : MERGED_DIRS) {
+                if (!new File(base, dir).isDirectory()) continue;
+                final ScanResult result = scans.get(scanIndex++).join();
+                plan.getDirs().add(dir);
+                plan.getDirs().addAll(result.dirs);
+                found.putAll(result.files);
+            }
+            for (File f : FileUtil.listFiles(base)) {
+                if (f.getName().equals(SOLO_JSON)) continue; // skip solo.json
+                found.put(f.getName(), f);
+            }
+            for (Map.Entry<String, File> entry : found.entrySet()) {
+                plan.getFiles().put(entry.getKey(), entry.getValue());
+                List<File> sources = providers.get(entry.getKey());
+                if (sources == null) {
+                    sources = new ArrayList<>(1);
+                    providers.put(entry.getKey(), sources);
+                }
+                sources.add(entry.getValue());
+            }
+        }
+
+        for (Map.Entry<String, List<File>> entry : providers.entrySet()) {
+            final List<File> sources = entry.getValue();
+            if (sources.size() < 2) continue;
+            final File winner = sources.get(sources.size()-1);
+            final List<String> overridden = new ArrayList<>();
+            for (File f : sources.subList(0, sources.size()-1)) {
+                if (differs(f, winner, index)) overridden.add(abs(f));
+            }
+            if (!overridden.isEmpty()) plan.getConflicts().add(new ChefMergeConflict(entry.getKey(), abs(winner), overridden));
+        }
+        return plan;
+    }
+
+    private static boolean differs(File f1, File f2, DigestIndex index) {
+        if (f1.length() != f2.length()) return true;
+        return !index.sha(f1).equals(index.sha(f2));
+    }
+
+    public static TreeSyncResult apply(ChefMergePlan plan, File targetDir, TreeSync treeSync) throws IOException {
+        final TreeSyncResult result = new TreeSyncResult();
+        for (String dir : plan.getDirs()) {
+            final File d = new File(targetDir, dir);
+            if (!d.isDirectory()) {
+                mkdirOrDie(d);
+                result.getCreatedDirs().add(abs(d));
+            }
+        }
+        for (Map.Entry<String, File> entry : plan.getFiles().entrySet()) {
+            final File source = entry.getValue();
+            final File target = new File(targetDir, entry.getKey());
+            final boolean topLevel = !entry.getKey().contains("/");
+            if (treeSync.syncFile(source, target, result) && topLevel && source.canExecute()) {
+                target.setReadable(true, false);
+                target.setExecutable(true, false);
+            }
+        }
+        return result;
+    }
+
+    private static class ScanResult {
+        final Set<String> dirs = new HashSet<>();
+        final Map<String, File> files = new HashMap<>();
+        void addAll(ScanResult other) { dirs.addAll(other.dirs); files.putAll(other.files); }
+    }
+
+    private static class ScanTask extends RecursiveTask<ScanResult> {
+
+        private final File dir;
+        private final String relativePath;
+
+        public ScanTask(File dir, String relativePath) {
+            this.dir = dir;
+            this.relativePath = relativePath;
+        }
+
+        @Override protected ScanResult compute() {
+            final ScanResult result = new ScanResult();
+            final File[] entries = dir.listFiles();
+            if (entries == null) return result;
+
+            final List<ScanTask> subtasks = new ArrayList<>();
+            for (File f : entries) {
+                final String path = relativePath + "/" + f.getName();
+                if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+                    result.dirs.add(path);
+                    final ScanTask task = new ScanTask(f, path);
+                    task.fork();
+                    subtasks.add(task);
+                } else {
+                    result.files.put(path, f);
+                }
+            }
+            for (ScanTask task : subtasks) result.addAll(task.join());
+            return result;
+        }
+    }
+
+}
@@ -29,10 +29,24 @@ public class ChefMessage extends RootyMessage {
     @Getter @Setter private ChefOperation operation;
     @JsonIgnore public boolean isAdd () { return ChefOperation.ADD == operation; }
     @JsonIgnore public boolean isRemove () { return ChefOperation.REMOVE == operation; }
+    @JsonIgnore public boolean isSynchronize () { return ChefOperation.SYNCHRONIZE == operation; }
 
     // if true, ChefHandler will re-apply this change even if it seems like it was already applied
     @Getter @Setter private boolean forceApply = false;
 
+    // while chef runs: estimated completion time (epoch millis), based on how long each recipe took before
+    @Getter @Setter private Long eta;
+
+    // id of this change's chef run output in the run log store, see ChefRunLogMessage
+    @Getter @Setter private String runLogId;
+
+    // for SYNCHRONIZE: if true, only converge cookbooks that changed since the last converge; if null, use the handler's setting
+    @Getter @Setter private Boolean delta;
+
+    // for ROLLBACK: the generation to restore. if null, restore the generation before the current one
+    @Getter @Setter private Long generation;
+    @JsonIgnore public boolean isRollback () { return ChefOperation.ROLLBACK == operation; }
+
     public static String getCookbook(String recipe) {
         final Matcher matcher = RUNLIST_PATTERN.matcher(recipe);
         return matcher.find() ? matcher.group(1) : null;
@@ -0,0 +1,10 @@
+package rooty.toots.chef;
+
+import lombok.NoArgsConstructor;
+import rooty.RootyMessage;
+
+/**
+ * Ask the ChefHandler for a JSON snapshot of its metrics, returned in the results
+ */
+@NoArgsConstructor
+public class ChefMetricsMessage extends RootyMessage {}
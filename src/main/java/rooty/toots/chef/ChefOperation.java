@@ -6,7 +6,7 @@ import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
 public enum ChefOperation {
 
-    ADD, REMOVE, SYNCHRONIZE;
+    ADD, REMOVE, SYNCHRONIZE, ROLLBACK;
 
     @JsonCreator public static ChefOperation create(String val) {
         return empty(val) ? null : ChefOperation.valueOf(val);
@@ -1,32 +1,140 @@
 package rooty.toots.chef;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.json.JsonUtil;
 import org.cobbzilla.util.system.CommandProgressCallback;
 import org.cobbzilla.util.system.CommandProgressMarker;
 import rooty.RootyStatusManager;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 
-@AllArgsConstructor @Slf4j
+@RequiredArgsConstructor @Slf4j
 public class ChefProgressCallback implements CommandProgressCallback {
 
-    @Getter private ChefMessage chefMessage;
-    @Getter private String queueName;
-    @Getter private RootyStatusManager statusManager;
+    @Getter private final ChefMessage chefMessage;
+    @Getter private final String queueName;
+    @Getter private final RootyStatusManager statusManager;
 
     @Getter private final List<CommandProgressMarker> progressMarkers = new ArrayList<>();
 
-    @Override public void updateProgress (CommandProgressMarker marker) {
+    // coalesced messages that see the same progress as chefMessage
+    @Getter private final List<ChefMessage> followers = new ArrayList<>();
+
+    public ChefProgressCallback addFollowers(List<ChefMessage> messages) { followers.addAll(messages); return this; }
+
+    // expected duration of each recipe in the run, in run order, used to estimate the time remaining
+    private final LinkedHashMap<String, Long> expected = new LinkedHashMap<>();
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+    private String currentRecipe;
+    private long currentStart;
+
+    public ChefProgressCallback setExpected(Map<String, Long> expectedMillis) { expected.putAll(expectedMillis); return this; }
+
+    /** @return how long each recipe took in this run, as observed from chef output */
+    public Map<String, Long> getDurations() { return durations; }
+
+    // progressMarkers as a JSON array, minus the closing bracket: each marker is serialized once, when it arrives
+    private final StringBuilder resultsJson = new StringBuilder("[");
+
+    // status store writes are limited to this many per second; markers in between are coalesced into the next
+    // write, which happens when the next marker arrives or, at the latest, once the interval is up
+    private int maxUpdatesPerSecond = 0;
+    private long lastUpdate = 0;
+    private boolean dirty = false;
+    private Long eta;
+    private ScheduledFuture<?> trailing;
+
+    private static final ScheduledExecutorService trailingPublisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ChefProgressCallback");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    public ChefProgressCallback setMaxUpdatesPerSecond(int max) { maxUpdatesPerSecond = max; return this; }
+
+    @Override public synchronized void updateProgress (CommandProgressMarker marker) {
         progressMarkers.add(marker);
+        final long now = System.currentTimeMillis();
+        trackRecipe(marker, now);
         try {
-            chefMessage.setResults(JsonUtil.toJson(progressMarkers));
+            if (progressMarkers.size() > 1) resultsJson.append(",");
+            resultsJson.append(JsonUtil.toJson(marker));
+        } catch (Exception e) {
+            log.error("Error serializing chef progress marker: "+e, e);
+            return;
+        }
+        eta = estimateCompletion(now, marker.getPercent());
+        dirty = true;
+
+        if (marker.getPercent() >= 100 || maxUpdatesPerSecond <= 0 || now - lastUpdate >= 1000 / maxUpdatesPerSecond) {
+            publish(now);
+        } else if (trailing == null) {
+            // don't hold this marker back until the next one, which may be a long recipe away
+            trailing = trailingPublisher.schedule(new Runnable() {
+                @Override public void run() { publishTrailing(); }
+            }, lastUpdate + 1000 / maxUpdatesPerSecond - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void publishTrailing() {
+        trailing = null;
+        if (dirty) publish(System.currentTimeMillis());
+    }
+
+    /** Writes any coalesced progress to the status store. Called when the chef run finishes. */
+    public synchronized void flush() { if (dirty) publish(System.currentTimeMillis()); }
+
+    private void publish(long now) {
+        if (trailing != null) {
+            trailing.cancel(false);
+            trailing = null;
+        }
+        final String results = resultsJson.toString() + "]";
+        try {
+            chefMessage.setResults(results);
+            chefMessage.setEta(eta);
             statusManager.update(queueName, chefMessage, true);
+            for (ChefMessage follower : followers) {
+                follower.setResults(results);
+                follower.setEta(eta);
+                statusManager.update(queueName, follower, true);
+            }
         } catch (Exception e) {
             log.error("Error updating chef results: "+e, e);
         }
+        lastUpdate = now;
+        dirty = false;
+    }
+
+    private void trackRecipe(CommandProgressMarker marker, long now) {
+        final String recipe = marker.getLine() == null ? null : ChefProgressFilter.recipeKey(marker.getLine());
+        if (recipe != null && recipe.equals(currentRecipe)) return;
+        if (recipe == null && marker.getPercent() < 100) return;
+
+        if (currentRecipe != null) durations.put(currentRecipe, now - currentStart);
+        currentRecipe = recipe;
+        currentStart = now;
+    }
+
+    private Long estimateCompletion(long now, int percent) {
+        if (percent >= 100) return now;
+        if (expected.isEmpty() || currentRecipe == null) return null;
+        long remaining = 0;
+        boolean after = false;
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            if (after) {
+                remaining += entry.getValue();
+            } else if (entry.getKey().equals(currentRecipe)) {
+                remaining += Math.max(0, entry.getValue() - (now - currentStart));
+                after = true;
+            }
+        }
+        return after ? now + remaining : null;
     }
 }
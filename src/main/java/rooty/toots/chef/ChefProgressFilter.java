@@ -0,0 +1,124 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.system.CommandProgressCallback;
+import org.cobbzilla.util.system.CommandProgressMarker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Watches chef output for progress indicators.
+ *
+ * Recipe progress is found with a single regex that pulls the cookbook::recipe token out of a resource line,
+ * followed by a map lookup, so the cost per line does not grow with the size of the run list. Other indicators
+ * (chef start/finish, progress_markers.json patterns) are few, and are matched one by one.
+ * Each indicator fires at most once.
+ */
+@Slf4j
+public class ChefProgressFilter extends OutputStream {
+
+    public static final Pattern RECIPE_PATTERN = Pattern.compile("\\((\\S+?)::(\\S+?) line \\d+\\)$");
+
+    @Getter private final CommandProgressCallback callback;
+
+    private final Map<String, Integer> recipeIndicators = new HashMap<>();
+    private final Map<Pattern, Integer> patternIndicators = new LinkedHashMap<>();
+    private final Set<Object> fired = new HashSet<>();
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    // if set, all output is also written here. Dropped after the first error: a broken log must not fail the run.
+    private OutputStream tee;
+
+    public ChefProgressFilter(CommandProgressCallback callback) { this.callback = callback; }
+
+    public ChefProgressFilter setTee(OutputStream tee) { this.tee = tee; return this; }
+
+    public static String recipeKey(ChefSoloEntry entry) { return entry.getCookbook() + "::" + entry.getFullRecipeName(); }
+
+    /** @return the cookbook::recipe a line of chef output belongs to, or null if it is not a resource line */
+    public static String recipeKey(String line) {
+        final Matcher matcher = RECIPE_PATTERN.matcher(line);
+        return matcher.find() ? matcher.group(1) + "::" + matcher.group(2) : null;
+    }
+
+    public ChefProgressFilter addRecipeIndicator(ChefSoloEntry entry, int percent) {
+        recipeIndicators.put(recipeKey(entry), percent);
+        return this;
+    }
+
+    public ChefProgressFilter addIndicator(String pattern, int percent) {
+        patternIndicators.put(Pattern.compile(pattern), percent);
+        return this;
+    }
+
+    @Override public synchronized void write(int b) throws IOException {
+        if (tee != null) {
+            try { tee.write(b); } catch (Exception e) { teeFailed(e); }
+        }
+        filter(b);
+    }
+
+    private void teeFailed(Exception e) {
+        log.error("teeFailed: error copying chef output, no longer copying it: "+e, e);
+        tee = null;
+    }
+
+    private void filter(int b) {
+        if (b == '\n') {
+            processLine(new String(line.toByteArray(), UTF8cs));
+            line.reset();
+        } else if (b != '\r') {
+            line.write(b);
+        }
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (tee != null) {
+            try { tee.write(b, off, len); } catch (Exception e) { teeFailed(e); }
+        }
+        for (int i = off; i < off + len; i++) filter(b[i]);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (tee != null) {
+            try { tee.flush(); } catch (Exception e) { teeFailed(e); }
+        }
+        if (line.size() > 0) {
+            processLine(new String(line.toByteArray(), UTF8cs));
+            line.reset();
+        }
+    }
+
+    protected void processLine(String line) {
+        final String recipe = recipeKey(line);
+        if (recipe != null) {
+            final Integer percent = recipeIndicators.get(recipe);
+            if (percent != null && fired.add(recipe)) fire(percent, RECIPE_PATTERN, line);
+        }
+        for (Map.Entry<Pattern, Integer> indicator : patternIndicators.entrySet()) {
+            final Pattern pattern = indicator.getKey();
+            if (!fired.contains(pattern) && pattern.matcher(line).find()) {
+                fired.add(pattern);
+                fire(indicator.getValue(), pattern, line);
+            }
+        }
+    }
+
+    private void fire(int percent, Pattern pattern, String line) {
+        try {
+            callback.updateProgress(new CommandProgressMarker(percent, pattern, line));
+        } catch (Exception e) {
+            log.warn("fire: error updating progress: "+e, e);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+
+import java.io.File;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+
+/**
+ * An extra progress marker read from data_bags/[cookbook]/progress_markers.json: when a chef output line
+ * matches the pattern, the cookbook's share of the progress bar is this percent complete.
+ */
+@NoArgsConstructor @Slf4j
+public class ChefProgressMarkerSpec {
+
+    public static final String PROGRESS_MARKERS_JSON = "progress_markers.json";
+
+    @Getter @Setter private String pattern;
+    @Getter @Setter private int percent;
+
+    public static ChefProgressMarkerSpec[] load(File chefDir, String cookbook) {
+        final File file = new File(chefDir, ChefSolo.DATABAGS_DIR + "/" + cookbook + "/" + PROGRESS_MARKERS_JSON);
+        if (!file.exists()) return new ChefProgressMarkerSpec[0];
+        try {
+            return fromJsonOrDie(FileUtil.toString(file), ChefProgressMarkerSpec[].class);
+        } catch (Exception e) {
+            log.warn("load: ignoring invalid "+abs(file)+": "+e);
+            return new ChefProgressMarkerSpec[0];
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+
+/**
+ * Historical durations of chef recipes, keyed by cookbook::recipe, kept in the chef state dir.
+ * Each new observation is blended into a moving average, so one slow run does not skew progress forever.
+ */
+@Slf4j
+public class ChefRecipeTimings {
+
+    public static final String TIMINGS_FILE = "recipe_timings.json";
+
+    // weight given to the newest observation
+    public static final double SMOOTHING = 0.3;
+
+    @NoArgsConstructor
+    public static class Timings {
+        @Getter @Setter private Map<String, Long> recipes = new TreeMap<>();
+    }
+
+    private final File file;
+    private final Map<String, Long> timings = new TreeMap<>();
+
+    public ChefRecipeTimings(File stateDir) {
+        this.file = new File(stateDir, TIMINGS_FILE);
+        if (file.exists()) {
+            try {
+                timings.putAll(fromJsonOrDie(FileUtil.toString(file), Timings.class).getRecipes());
+            } catch (Exception e) {
+                log.warn("ChefRecipeTimings: error loading "+abs(file)+", starting empty: "+e);
+            }
+        }
+    }
+
+    public static String key(ChefSoloEntry entry) { return ChefProgressFilter.recipeKey(entry); }
+
+    public synchronized Long get(String recipe) { return timings.get(recipe); }
+
+    /** @return the average of all known durations, or the given default if nothing is known yet */
+    public synchronized long average(long defaultMillis) {
+        if (timings.isEmpty()) return defaultMillis;
+        long total = 0;
+        for (Long t : timings.values()) total += t;
+        return total / timings.size();
+    }
+
+    public synchronized void record(Map<String, Long> durations) {
+        if (durations.isEmpty()) return;
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            final Long previous = timings.get(entry.getKey());
+            final long observed = entry.getValue();
+            timings.put(entry.getKey(), previous == null ? observed : Math.round(SMOOTHING * observed + (1 - SMOOTHING) * previous));
+        }
+        final Timings toSave = new Timings();
+        toSave.getRecipes().putAll(timings);
+        final File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        try {
+            FileUtil.toFile(temp, toJsonOrDie(toSave));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("record: error writing "+abs(file)+": "+e);
+        }
+    }
+
+}
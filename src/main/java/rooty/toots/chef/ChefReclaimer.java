@@ -0,0 +1,180 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.IoThrottle;
+import rooty.toots.util.ParallelDelete;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+
+/**
+ * Reclaims disk space from leftover staging dirs and old .backup_/.retired chef dirs.
+ *
+ * While holding the handler's lock (so no operation is using them), anything left in the staging dir and
+ * every backup beyond the retention count is renamed into a .reclaim dir. If there is a disk budget, the
+ * remaining backups are sized without the lock, and the ones over budget are then moved the same way. The slow part,
+ * deleting those trees, happens afterwards on a background thread with a throttled ParallelDelete.
+ * Runs periodically, and after each change is committed.
+ */
+@Slf4j
+public class ChefReclaimer {
+
+    public static final String RECLAIM_DIR = ".reclaim";
+    public static final String STAGING_DIR = "staging";
+    public static final String[] BACKUP_PREFIXES = {".backup", ".retired"};
+
+    private final ChefHandler handler;
+    private final ParallelDelete deleter;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ChefReclaimer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private final Runnable reclaimTask = new Runnable() {
+        @Override public void run() {
+            pending.set(false);
+            reclaim();
+        }
+    };
+
+    public ChefReclaimer(ChefHandler handler) {
+        this.handler = handler;
+        this.deleter = new ParallelDelete(ParallelDelete.DEFAULT_PARALLELISM, new IoThrottle(handler.getReclaimOpsPerSecond()));
+        final long interval = handler.getReclaimIntervalMinutes();
+        if (interval > 0) executor.scheduleWithFixedDelay(reclaimTask, interval, interval, TimeUnit.MINUTES);
+    }
+
+    private MetricsRegistry metrics() { return handler.getMetrics(); }
+
+    /** Run a reclaim pass soon, unless one is already waiting to run. */
+    public void schedule() {
+        if (pending.compareAndSet(false, true)) executor.submit(reclaimTask);
+    }
+
+    protected void reclaim() {
+        final long start = Metrics.now();
+        try {
+            final File parent = handler.getChefDirFile().getParentFile();
+            final File trash = new File(parent, RECLAIM_DIR);
+            final List<File> kept;
+            synchronized (handler) {
+                for (File f : selectStaging(parent)) moveToTrash(f, trash);
+                final List<File> backups = listBackups(parent);
+                final int keep = Math.min(backups.size(), handler.getBackupsToKeep());
+                for (File f : backups.subList(keep, backups.size())) moveToTrash(f, trash);
+                kept = new ArrayList<>(backups.subList(0, keep));
+            }
+
+            // sizing backups can take a while, so it happens without holding up chef operations
+            if (handler.getBackupBudgetMb() > 0) {
+                final List<File> overBudget = overBudget(kept);
+                if (!overBudget.isEmpty()) {
+                    synchronized (handler) {
+                        for (File f : overBudget) if (f.exists()) moveToTrash(f, trash);
+                    }
+                }
+            }
+
+            // includes anything left over from an interrupted earlier pass
+            final File[] doomed = trash.listFiles();
+            if (doomed == null) return;
+            for (File f : doomed) {
+                final long bytes = deleter.delete(f);
+                metrics().increment("chef.reclaim.bytes", bytes);
+                metrics().increment("chef.reclaim.dirs");
+                log.info("reclaim: deleted "+abs(f)+" ("+bytes+" bytes)");
+            }
+
+        } catch (Exception e) {
+            metrics().increment("chef.reclaim.errors");
+            log.error("reclaim: "+e, e);
+
+        } finally {
+            metrics().time("chef.reclaim", start);
+        }
+    }
+
+    protected List<File> selectStaging(File parent) {
+        final File[] staged = new File(parent, STAGING_DIR).listFiles();
+        return staged == null ? Collections.<File>emptyList() : Arrays.asList(staged);
+    }
+
+    /** @return .backup_/.retired dirs, newest first */
+    protected List<File> listBackups(File parent) {
+        final List<File> backups = new ArrayList<>();
+        final File[] files = parent.listFiles();
+        if (files == null) return backups;
+        for (File f : files) {
+            for (String prefix : BACKUP_PREFIXES) {
+                if (f.getName().startsWith(prefix) && f.isDirectory()) { backups.add(f); break; }
+            }
+        }
+        Collections.sort(backups, new Comparator<File>() {
+            @Override public int compare(File a, File b) { return Long.compare(b.lastModified(), a.lastModified()); }
+        });
+        return backups;
+    }
+
+    /**
+     * @param backups newest first
+     * @return backups to delete, oldest first, until the rest fit in the budget. The newest is always kept.
+     * A file hard-linked into several backups is only counted once, against the newest backup that has it.
+     */
+    protected List<File> overBudget(List<File> backups) throws IOException {
+        final long budget = handler.getBackupBudgetMb() * FileUtils.ONE_MB;
+        final Set<Object> counted = new HashSet<>();
+        final List<File> doomed = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < backups.size(); i++) {
+            final File backup = backups.get(i);
+            final long size = sizeOf(backup, counted);
+            if (i > 0 && total + size > budget) {
+                doomed.add(backup);
+                continue;
+            }
+            total += size;
+        }
+        metrics().gauge("chef.reclaim.backups.bytes", total);
+        return doomed;
+    }
+
+    private static long sizeOf(File dir, final Set<Object> counted) throws IOException {
+        final long[] total = {0};
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                final Object key = attrs.fileKey();
+                if (key == null || counted.add(key)) total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+            @Override public FileVisitResult visitFileFailed(Path file, IOException e) { return FileVisitResult.CONTINUE; }
+        });
+        return total[0];
+    }
+
+    private void moveToTrash(File f, File trash) throws IOException {
+        mkdirOrDie(trash);
+        Files.move(f.toPath(), new File(trash, f.getName() + "_" + System.currentTimeMillis()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
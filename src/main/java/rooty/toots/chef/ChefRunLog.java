@@ -0,0 +1,98 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Writes one chef run's output into fixed-size segment files, dropping the oldest segment when the run goes
+ * over its size cap. Offsets are global (bytes since the run started), so a byte at offset N is always in
+ * segment N / segmentBytes. Recipe boundaries are indexed as lines go by.
+ */
+@Slf4j
+public class ChefRunLog extends OutputStream {
+
+    private final ChefRunLogStore store;
+    @Getter private final File dir;
+    @Getter private final ChefRunLogIndex index;
+    private final int maxSegments;
+
+    private OutputStream segment;
+    private long offset = 0;
+    private long lineStart = 0;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private ChefRunLogRecipe current;
+    private boolean closed = false;
+
+    public ChefRunLog(ChefRunLogStore store, File dir, ChefRunLogIndex index, int maxSegments) {
+        this.store = store;
+        this.dir = dir;
+        this.index = index;
+        this.maxSegments = maxSegments;
+    }
+
+    public String getId() { return index.getId(); }
+
+    @Override public synchronized void write(int b) throws IOException {
+        if (closed) return;
+        if (offset % index.getSegmentBytes() == 0) rotate();
+        segment.write(b);
+        offset++;
+
+        if (b == '\n') {
+            processLine();
+        } else if (b != '\r') {
+            line.write(b);
+        }
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) write(b[i]);
+    }
+
+    @Override public synchronized void flush() throws IOException {
+        if (segment != null) segment.flush();
+    }
+
+    private void processLine() {
+        final String recipe = ChefProgressFilter.recipeKey(new String(line.toByteArray(), UTF8cs));
+        if (recipe != null && (current == null || !current.getRecipe().equals(recipe))) {
+            final long now = System.currentTimeMillis();
+            if (current != null) current.finish(lineStart, now);
+            current = new ChefRunLogRecipe(recipe, lineStart, now);
+            index.getRecipes().add(current);
+        }
+        line.reset();
+        lineStart = offset;
+    }
+
+    private void rotate() throws IOException {
+        if (segment != null) segment.close();
+        final long segmentNumber = offset / index.getSegmentBytes();
+        segment = new BufferedOutputStream(new FileOutputStream(store.segmentFile(dir, segmentNumber)));
+
+        final long drop = segmentNumber - maxSegments;
+        if (drop >= 0) {
+            final File old = store.segmentFile(dir, drop);
+            if (old.exists() && !old.delete()) log.warn("rotate: error deleting "+abs(old));
+            index.setFirstOffset((drop + 1) * index.getSegmentBytes());
+        }
+        index.setTotalBytes(offset);
+        store.writeIndex(dir, index);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (closed) return;
+        if (line.size() > 0) processLine();
+        if (current != null) current.finish(offset, System.currentTimeMillis());
+        if (segment != null) segment.close();
+        closed = true;
+        index.setTotalBytes(offset).setFinished(true);
+        store.writeIndex(dir, index);
+    }
+
+}
@@ -0,0 +1,39 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of one chef run log: its size, what has been dropped from the front to stay under the size cap,
+ * and where each recipe's output starts and ends.
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ChefRunLogIndex {
+
+    @Getter @Setter private String id;
+    @Getter @Setter private String label;
+    @Getter @Setter private long ctime;
+    @Getter @Setter private long mtime;
+    @Getter @Setter private boolean finished = false;
+
+    @Getter @Setter private long segmentBytes;
+    @Getter @Setter private long totalBytes;
+
+    // output before this offset was dropped to keep the log under its size cap
+    @Getter @Setter private long firstOffset;
+
+    @Getter @Setter private List<ChefRunLogRecipe> recipes = new ArrayList<>();
+
+    public ChefRunLogRecipe getRecipe(String recipe) {
+        for (ChefRunLogRecipe r : recipes) {
+            if (r.getRecipe().equals(recipe)) return r;
+        }
+        return null;
+    }
+
+}
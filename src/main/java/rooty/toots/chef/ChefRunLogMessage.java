@@ -0,0 +1,26 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import rooty.RootyMessage;
+
+/**
+ * Ask the ChefHandler about recorded chef run output. The results are:
+ * <ul>
+ *     <li>with no runId: a JSON array of recent runs (ChefRunLogIndex), newest first</li>
+ *     <li>with a runId and a recipe: that recipe's output</li>
+ *     <li>with a runId and a length: that slice of the run's output, starting at offset</li>
+ *     <li>with just a runId: the run's ChefRunLogIndex, including per-recipe timings</li>
+ * </ul>
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ChefRunLogMessage extends RootyMessage {
+
+    @Getter @Setter private String runId;
+    @Getter @Setter private String recipe;
+    @Getter @Setter private long offset = 0;
+    @Getter @Setter private int length = 0;
+
+}
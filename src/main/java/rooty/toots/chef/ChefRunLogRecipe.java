@@ -0,0 +1,35 @@
+package rooty.toots.chef;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Where one recipe's output sits in a chef run log, and how long it ran.
+ */
+@NoArgsConstructor
+public class ChefRunLogRecipe {
+
+    public ChefRunLogRecipe(String recipe, long startOffset, long startTime) {
+        this.recipe = recipe;
+        this.startOffset = startOffset;
+        this.startTime = startTime;
+    }
+
+    @Getter @Setter private String recipe;
+    @Getter @Setter private long startOffset;
+    @Getter @Setter private long endOffset;
+    @Getter @Setter private long startTime;
+    @Getter @Setter private long endTime;
+    @Getter @Setter private long duration;
+
+    @JsonIgnore public long getLength() { return endOffset - startOffset; }
+
+    public void finish(long offset, long time) {
+        this.endOffset = offset;
+        this.endTime = time;
+        this.duration = time - startTime;
+    }
+
+}
@@ -0,0 +1,166 @@
+package rooty.toots.chef;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Keeps the output of recent chef runs, one directory per run: fixed-size segment files (see ChefRunLog)
+ * plus an index.json with the run's size and per-recipe offsets and timings.
+ * Only the newest runsToKeep runs are kept. Reads return bounded slices and never load a whole log.
+ */
+@Slf4j
+public class ChefRunLogStore {
+
+    public static final String INDEX_JSON = "index.json";
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    // largest slice returned by a single read
+    public static final int MAX_SLICE_BYTES = 256 * 1024;
+
+    @Getter private final File root;
+    private final long segmentBytes;
+    private final long maxBytesPerRun;
+    private final int runsToKeep;
+    private long lastId = 0;
+
+    public ChefRunLogStore(File root, long maxBytesPerRun, int runsToKeep) {
+        this(root, maxBytesPerRun, runsToKeep, DEFAULT_SEGMENT_BYTES);
+    }
+
+    ChefRunLogStore(File root, long maxBytesPerRun, int runsToKeep, long segmentBytes) {
+        if (maxBytesPerRun <= 0 || segmentBytes <= 0) throw new IllegalArgumentException("run log sizes must be positive: maxBytesPerRun="+maxBytesPerRun+", segmentBytes="+segmentBytes);
+        this.root = mkdirOrDie(root);
+        this.segmentBytes = Math.min(segmentBytes, maxBytesPerRun);
+        this.maxBytesPerRun = maxBytesPerRun;
+        this.runsToKeep = runsToKeep;
+    }
+
+    public synchronized ChefRunLog newRun(String label) throws IOException {
+        // ids are creation times, unique and sortable
+        long id = System.currentTimeMillis();
+        if (id <= lastId) id = lastId + 1;
+        lastId = id;
+
+        final File dir = mkdirOrDie(new File(root, String.valueOf(id)));
+        final ChefRunLogIndex index = new ChefRunLogIndex()
+                .setId(String.valueOf(id))
+                .setLabel(label)
+                .setCtime(System.currentTimeMillis())
+                .setSegmentBytes(segmentBytes);
+        writeIndex(dir, index);
+        prune();
+        return new ChefRunLog(this, dir, index, (int) Math.max(1, maxBytesPerRun / segmentBytes));
+    }
+
+    File segmentFile(File dir, long segment) { return new File(dir, String.format("%08d.log", segment)); }
+
+    void writeIndex(File dir, ChefRunLogIndex index) throws IOException {
+        index.setMtime(System.currentTimeMillis());
+        final File temp = new File(dir, "." + INDEX_JSON + ".tmp");
+        FileUtil.toFile(temp, toJsonOrDie(index));
+        Files.move(temp.toPath(), new File(dir, INDEX_JSON).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<String> runIds() {
+        final String[] names = root.list();
+        if (names == null) return new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        for (String name : names) {
+            if (name.matches("\\d+")) ids.add(name);
+        }
+        // same-length decimal timestamps sort correctly as strings
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private void prune() {
+        final List<String> ids = runIds();
+        for (int i = 0; i < ids.size() - runsToKeep; i++) {
+            FileUtils.deleteQuietly(new File(root, ids.get(i)));
+        }
+    }
+
+    /** @return indexes of the kept runs, newest first */
+    public List<ChefRunLogIndex> getRuns() {
+        final List<String> ids = runIds();
+        final List<ChefRunLogIndex> runs = new ArrayList<>(ids.size());
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            final ChefRunLogIndex index = getRun(ids.get(i));
+            if (index != null) runs.add(index);
+        }
+        return runs;
+    }
+
+    public ChefRunLogIndex getRun(String id) {
+        final File file = new File(runDir(id), INDEX_JSON);
+        if (!file.exists()) return null;
+        try {
+            return fromJsonOrDie(FileUtil.toString(file), ChefRunLogIndex.class);
+        } catch (Exception e) {
+            log.warn("getRun: error reading "+abs(file)+": "+e);
+            return null;
+        }
+    }
+
+    private File runDir(String id) {
+        if (id == null || !id.matches("\\d+")) die("invalid run id: "+id);
+        return new File(root, id);
+    }
+
+    /** @return the output of one recipe in a run, up to MAX_SLICE_BYTES from its start */
+    public String readRecipe(String id, String recipe) throws IOException {
+        final ChefRunLogIndex index = getRun(id);
+        if (index == null) return null;
+        final ChefRunLogRecipe r = index.getRecipe(recipe);
+        if (r == null) return null;
+        final long end = r.getEndOffset() > 0 ? r.getEndOffset() : index.getTotalBytes();
+        return read(id, r.getStartOffset(), (int) Math.min(end - r.getStartOffset(), MAX_SLICE_BYTES));
+    }
+
+    /** @return up to length bytes (at most MAX_SLICE_BYTES) of a run's output, starting at offset */
+    public String read(String id, long offset, int length) throws IOException {
+        final ChefRunLogIndex index = getRun(id);
+        if (index == null) return null;
+        final File dir = runDir(id);
+        final long segBytes = index.getSegmentBytes();
+
+        long pos = Math.max(offset, index.getFirstOffset());
+        final long end = pos + Math.min(Math.max(length, 0), MAX_SLICE_BYTES);
+        final byte[] buf = new byte[(int) (end - pos)];
+        int filled = 0;
+        while (pos < end) {
+            final File segment = segmentFile(dir, pos / segBytes);
+            if (!segment.exists()) break;
+            try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+                final long within = pos % segBytes;
+                if (within >= raf.length()) break;
+                raf.seek(within);
+                final int n = raf.read(buf, filled, (int) Math.min(end - pos, raf.length() - within));
+                if (n <= 0) break;
+                filled += n;
+                pos += n;
+            }
+        }
+        return new String(Arrays.copyOf(buf, filled), UTF8cs);
+    }
+
+}
@@ -1,15 +1,12 @@
 package rooty.toots.chef;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import lombok.AllArgsConstructor;
-import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
-import org.cobbzilla.util.io.FileUtil;
-import org.cobbzilla.util.security.ShaUtil;
 import org.cobbzilla.util.string.StringUtil;
-import org.cobbzilla.util.system.CommandShell;
+import rooty.toots.util.DigestIndex;
+import rooty.toots.util.TreeSync;
+import rooty.toots.util.TreeSyncResult;
 
 import java.io.File;
 import java.io.IOException;
@@ -19,9 +16,8 @@ import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.io.FileUtil.*;
 import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
 import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
-import static org.cobbzilla.util.system.CommandShell.chmod;
 
-@NoArgsConstructor @AllArgsConstructor @Slf4j
+@NoArgsConstructor @Slf4j
 public class ChefSolo {
 
     public static final String SOLO_JSON = "solo.json";
@@ -29,7 +25,13 @@ public class ChefSolo {
     public static final String DATABAGS_DIR = "data_bags";
     public static final String DATAFILES_DIR = "data_files";
 
-    @Getter private List<String> run_list = new ArrayList<>();
+    private List<String> run_list = new ArrayList<>();
+
+    // run_list parsed into entries, plus each cookbook's entries; built on first use, kept in step with run_list
+    private LinkedHashSet<ChefSoloEntry> entries;
+    private Map<String, List<ChefSoloEntry>> entriesByCookbook;
+
+    public ChefSolo(List<String> run_list) { this.run_list = new ArrayList<>(run_list); }
 
     public static ChefSolo fromChefRepo(File dir) {
         return fromJsonOrDie(toStringOrDie(new File(dir, SOLO_JSON)), ChefSolo.class);
@@ -37,9 +39,39 @@ public class ChefSolo {
 
     public ChefSolo(String cookbook, File chefDir) { insertApp(cookbook, chefDir); }
 
-    public void setRun_list(String[] run_list) { this.run_list.addAll(Arrays.asList(run_list)); }
+    public List<String> getRun_list() { return Collections.unmodifiableList(run_list); }
+
+    public void setRun_list(String[] run_list) {
+        for (String recipe : run_list) add(recipe);
+    }
+
+    @JsonIgnore public Set<ChefSoloEntry> getEntries () { return new LinkedHashSet<>(entries()); }
+
+    private LinkedHashSet<ChefSoloEntry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashSet<>(run_list.size());
+            entriesByCookbook = new LinkedHashMap<>();
+            for (String recipe : run_list) index(new ChefSoloEntry(recipe));
+        }
+        return entries;
+    }
+
+    private void index(ChefSoloEntry entry) {
+        if (!entries.add(entry)) return;
+        List<ChefSoloEntry> list = entriesByCookbook.get(entry.getCookbook());
+        if (list == null) {
+            list = new ArrayList<>();
+            entriesByCookbook.put(entry.getCookbook(), list);
+        }
+        list.add(entry);
+    }
 
-    @JsonIgnore public Set<ChefSoloEntry> getEntries () { return getEntries(run_list); }
+    private void setEntries(Collection<ChefSoloEntry> newEntries) {
+        run_list = new ArrayList<>(StringUtil.toStringCollection(newEntries));
+        entries = new LinkedHashSet<>(newEntries.size());
+        entriesByCookbook = new LinkedHashMap<>();
+        for (ChefSoloEntry entry : newEntries) index(entry);
+    }
 
     public static Set<ChefSoloEntry> getEntries(List<String> list) {
         final Set<ChefSoloEntry> entries = new LinkedHashSet<>(list.size());
@@ -50,11 +82,8 @@ public class ChefSolo {
     }
 
     @JsonIgnore public Set<String> getCookbooks () {
-        final Set<String> cookbooks = new LinkedHashSet<>(run_list.size());
-        for (String recipe : run_list) {
-            cookbooks.add(new ChefSoloEntry(recipe).getCookbook());
-        }
-        return cookbooks;
+        entries();
+        return new LinkedHashSet<>(entriesByCookbook.keySet());
     }
 
     public void insertApp (String name, File chefDir) {
@@ -64,7 +93,7 @@ public class ChefSolo {
 
         if (!hasDefault) die("No default recipe found for "+name+" in "+abs(chefDir));
 
-        final List<ChefSoloEntry> currentEntries = new ArrayList<>(getEntries());
+        final List<ChefSoloEntry> currentEntries = new ArrayList<>(entries());
         if (hasLib) {
             int libInsertPos = 0;
             for (ChefSoloEntry entry : currentEntries) {
@@ -111,7 +140,7 @@ public class ChefSolo {
             if (insertValidate) currentEntries.add(new ChefSoloEntry(name, "validate"));
         }
 
-        run_list = StringUtil.toStringCollection(currentEntries);
+        setEntries(currentEntries);
     }
 
     public Set<String> getLibRecipeRunList(File chefDir, List<String> includeRecipes) {
@@ -131,9 +160,13 @@ public class ChefSolo {
     }
 
     public Set<String> getRunList(File chefDir, String recipeName, List<String> includeRecipes) {
+        return getRunList(new ChefCookbookCatalog(chefDir), recipeName, includeRecipes);
+    }
+
+    private Set<String> getRunList(ChefCookbookCatalog catalog, String recipeName, List<String> includeRecipes) {
         final Set<String> found = new LinkedHashSet<>(run_list.size());
         for (String cookbook : getCookbooks()) {
-            if (recipeExists(chefDir, cookbook, recipeName)) {
+            if (catalog.hasRecipe(cookbook, recipeName)) {
                 final ChefSoloEntry soloEntry = new ChefSoloEntry(cookbook, recipeName);
 
                 // only add this entry if the run_list also includes the default recipe for this cookbook
@@ -146,7 +179,7 @@ public class ChefSolo {
         if (includeRecipes != null) {
             for (String r : includeRecipes) {
                 final ChefSoloEntry soloEntry = new ChefSoloEntry(r).setRecipe(recipeName);
-                if (recipeExists(chefDir, soloEntry.getCookbook(), recipeName)) {
+                if (catalog.hasRecipe(soloEntry.getCookbook(), recipeName)) {
                     found.add(soloEntry.toString());
                 }
             }
@@ -155,66 +188,109 @@ public class ChefSolo {
     }
 
     private boolean hasDefaultRecipe(String cookbook) {
-        return run_list.contains(ChefSoloEntry.defaultRecipe(cookbook))
-                || run_list.contains("recipe["+cookbook+"::default]");
+        entries();
+        final List<ChefSoloEntry> cookbookEntries = entriesByCookbook.get(cookbook);
+        if (cookbookEntries == null) return false;
+        for (ChefSoloEntry entry : cookbookEntries) {
+            if (entry.isRecipe("default")) return true;
+        }
+        return false;
     }
 
     public static boolean recipeExists(File chefDir, String cookbook, String recipeName) {
         return new File(abs(chefDir) + "/cookbooks/"+cookbook+"/recipes/"+recipeName+".rb").exists();
     }
 
-    public boolean containsCookbook (String cookbook) { return getCookbooks().contains(cookbook); }
+    public boolean containsCookbook (String cookbook) {
+        entries();
+        return entriesByCookbook.containsKey(cookbook);
+    }
 
-    public void add(String recipe) { run_list.add(recipe); }
+    public void add(String recipe) {
+        run_list.add(recipe);
+        if (entries != null) index(new ChefSoloEntry(recipe));
+    }
 
-    public void addRecipes(Collection<String> recipes) { run_list.addAll(recipes); }
+    public void addRecipes(Collection<String> recipes) {
+        for (String recipe : recipes) add(recipe);
+    }
 
     public void removeCookbook(String cookbook) {
-        final Set<ChefSoloEntry> entries = getEntries();
-        for (Iterator<ChefSoloEntry> i = entries.iterator(); i.hasNext();) {
-            if (i.next().getCookbook().equals(cookbook)) i.remove();
+        entries();
+        if (!entriesByCookbook.containsKey(cookbook)) return;
+        final List<ChefSoloEntry> remaining = new ArrayList<>(entries.size());
+        for (ChefSoloEntry entry : entries) {
+            if (!entry.getCookbook().equals(cookbook)) remaining.add(entry);
         }
-        run_list = StringUtil.toStringCollection(entries);
+        setEntries(remaining);
     }
 
     public ChefSolo mergeRunList(List<String> recipes, File chefDir) {
+        final ChefCookbookCatalog catalog = new ChefCookbookCatalog(chefDir);
         final List<String> runlist = new ArrayList<>();
-        for (String r : getLibRecipeRunList(chefDir, recipes)) runlist.add(r);
-        for (String r : getDefaultRunList(chefDir, recipes)) runlist.add(r);
-        for (String r : getValidationRunList(chefDir, null)) runlist.add(r);
+        for (String r : getRunList(catalog, "lib", recipes)) runlist.add(r);
+        for (String r : getRunList(catalog, "default", recipes)) runlist.add(r);
+        for (String r : getRunList(catalog, "validate", null)) runlist.add(r);
+        return new ChefSolo(runlist);
+    }
+
+    /**
+     * The run list to install several cookbooks in one chef run: all lib recipes (existing and new),
+     * then the default and validate recipes of the new cookbooks only.
+     */
+    public ChefSolo getInstallRunList(Collection<String> cookbooks, File chefDir) {
+        final List<String> recipes = new ArrayList<>(cookbooks.size());
+        for (String cookbook : cookbooks) recipes.add(ChefSoloEntry.defaultRecipe(cookbook));
+
+        final ChefCookbookCatalog catalog = new ChefCookbookCatalog(chefDir);
+        final List<String> runlist = new ArrayList<>(getRunList(catalog, "lib", recipes));
+        for (String cookbook : cookbooks) {
+            if (catalog.hasRecipe(cookbook, "default")) runlist.add(new ChefSoloEntry(cookbook, "default").toString());
+        }
+        for (String cookbook : cookbooks) {
+            if (catalog.hasRecipe(cookbook, "validate")) runlist.add(new ChefSoloEntry(cookbook, "validate").toString());
+        }
+        return new ChefSolo(runlist);
+    }
+
+    /**
+     * The run list for a delta converge: every lib recipe, then the run list's other entries, but only for
+     * the changed cookbooks, keeping their run list order.
+     */
+    public ChefSolo getDeltaRunList(Collection<String> changedCookbooks, File chefDir) {
+        final List<String> runlist = new ArrayList<>(getLibRecipeRunList(chefDir, null));
+        for (ChefSoloEntry entry : getEntries()) {
+            if (changedCookbooks.contains(entry.getCookbook()) && !entry.isRecipe("lib")) runlist.add(entry.toString());
+        }
         return new ChefSolo(runlist);
     }
 
-    public static void merge(List<File> chefBaseDirs, File targetDir) throws IOException {
+    public static TreeSyncResult merge(List<File> chefBaseDirs, File targetDir) throws IOException {
 
         mkdirOrDie(targetDir);
-        final File targetCookbooks = mkdirOrDie(new File(targetDir, COOKBOOKS_DIR));
-        final File targetDatabags = mkdirOrDie(new File(targetDir, DATABAGS_DIR));
-        final File targetDatafiles = mkdirOrDie(new File(targetDir, DATAFILES_DIR));
-
-        for (File base : chefBaseDirs) {
-
-            FileUtil.assertIsDir(base);
-            sync(targetCookbooks, base, COOKBOOKS_DIR);
-            sync(targetDatabags, base, DATABAGS_DIR);
-            sync(targetDatafiles, base, DATAFILES_DIR);
-
-            for (File f : FileUtil.listFiles(base)) {
-                if (f.getName().equals(SOLO_JSON)) continue; // skip solo.json
-                final File target = new File(targetDir, f.getName());
-                if (!target.exists() || ShaUtil.sha256_file(f).equals(ShaUtil.sha256_file(target))) {
-                    FileUtils.copyFile(f, target);
-                    if (f.canExecute()) chmod(target, "a+rx");
-                }
+        mkdirOrDie(new File(targetDir, COOKBOOKS_DIR));
+        mkdirOrDie(new File(targetDir, DATABAGS_DIR));
+        mkdirOrDie(new File(targetDir, DATAFILES_DIR));
+
+        final DigestIndex index = new DigestIndex(syncIndexFile(targetDir));
+        try {
+            final ChefMergePlan plan = ChefMergePlanner.plan(chefBaseDirs, index);
+            for (ChefMergeConflict conflict : plan.getConflicts()) {
+                log.warn("merge: conflict for "+conflict.getPath()+": using "+conflict.getWinner()+", overriding "+conflict.getOverridden());
             }
+            final TreeSyncResult result = ChefMergePlanner.apply(plan, targetDir, new TreeSync().setIndex(index));
+            log.info("merge: "+result.getFilesCopied()+" files copied ("+result.getBytesCopied()+" bytes) of "
+                    +result.getFilesScanned()+" scanned, "+plan.getConflicts().size()+" conflicts");
+            return result;
+
+        } finally {
+            index.save();
         }
     }
 
-    protected static void sync(File target, File base, String dir) throws IOException {
-        final File files = new File(base, dir);
-        if (files.exists() && files.isDirectory()) {
-            CommandShell.exec("rsync -avzc " + abs(files) + " " + abs(target.getParentFile()));
-        }
+    // the digest index lives next to the target dir, so it never gets merged or staged along with it
+    public static File syncIndexFile(File targetDir) {
+        return new File(targetDir.getParentFile(), "." + targetDir.getName() + ".sync_index.json");
     }
 
     public void write(File file) {
@@ -0,0 +1,21 @@
+package rooty.toots.chef;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * How ChefHandler builds a staging copy of the chef dir:
+ *   rsync:    full checksummed copy (the original behavior)
+ *   hardlink: a tree of hard links, cost is proportional to the number of directory entries, not bytes
+ *   reflink:  cp --reflink=auto, copy-on-write clones on filesystems that support it (btrfs, xfs), full copy elsewhere
+ */
+public enum ChefStagingMode {
+
+    rsync, hardlink, reflink;
+
+    @JsonCreator public static ChefStagingMode create(String val) {
+        return empty(val) ? null : ChefStagingMode.valueOf(val.toLowerCase());
+    }
+
+}
@@ -0,0 +1,128 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.DigestIndex;
+import rooty.toots.util.TreeSync;
+import rooty.toots.util.TreeSyncResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+
+/**
+ * Keeps one staging dir synced with the live chef dir in the background, so a message can claim a ready
+ * staging tree instead of copying the whole chef dir on its critical path.
+ *
+ * A claim renames the prewarmed dir into place and runs a pruning TreeSync to pick up anything that changed
+ * since it was last warmed (normally nothing). If the dir is missing or still being warmed, the claim fails
+ * and the caller creates a staging dir the usual way. Either way a new prewarmed dir is warmed afterwards.
+ */
+@Slf4j
+public class ChefStagingPrewarmer {
+
+    public static final String PREWARMED_DIR = ".staging_prewarmed";
+
+    private final ChefHandler handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final DigestIndex index = new DigestIndex();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ChefStagingPrewarmer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private final Runnable warmTask = new Runnable() {
+        @Override public void run() {
+            pending.set(false);
+            warm();
+        }
+    };
+
+    public ChefStagingPrewarmer(ChefHandler handler) { this.handler = handler; }
+
+    private MetricsRegistry metrics() { return handler.getMetrics(); }
+
+    public File getPrewarmedDir() { return new File(handler.getChefDirFile().getParentFile(), PREWARMED_DIR); }
+
+    /** Bring the prewarmed dir up to date soon, unless that is already waiting to happen. */
+    public void schedule() {
+        if (pending.compareAndSet(false, true)) executor.submit(warmTask);
+    }
+
+    protected void warm() {
+        final long start = Metrics.now();
+        lock.lock();
+        try {
+            final File prewarmed = getPrewarmedDir();
+            final TreeSyncResult result = sync(prewarmed);
+            handler.chown(prewarmed, result);
+            log.info("warm: "+abs(prewarmed)+" is ready ("+result.getFilesCopied()+" files copied)");
+
+        } catch (Exception e) {
+            // the chef dir may have been swapped mid-walk; a claim syncs again anyway
+            metrics().increment("chef.staging.prewarm.errors");
+            log.warn("warm: "+e, e);
+
+        } finally {
+            lock.unlock();
+            metrics().time("chef.staging.prewarm", start);
+        }
+    }
+
+    /**
+     * @param target where the staging dir should be; must not exist yet
+     * @return true if the prewarmed dir was moved to target and brought up to date
+     */
+    public boolean claim(File target) {
+        if (!lock.tryLock()) {
+            metrics().increment("chef.staging.prewarm.busy");
+            return false;
+        }
+        try {
+            final File prewarmed = getPrewarmedDir();
+            if (!prewarmed.isDirectory()) return false;
+            Files.move(prewarmed.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            try {
+                final TreeSyncResult result = sync(target);
+                handler.chown(target, result);
+                metrics().increment("chef.staging.prewarm.claimed");
+                log.info("claim: using prewarmed staging dir "+abs(target)+" ("+result.getFilesCopied()+" files caught up)");
+                return true;
+
+            } catch (Exception e) {
+                FileUtils.deleteQuietly(target);
+                throw e;
+            }
+
+        } catch (Exception e) {
+            metrics().increment("chef.staging.prewarm.errors");
+            log.warn("claim: falling back to a fresh staging dir: "+e, e);
+            return false;
+
+        } finally {
+            lock.unlock();
+            schedule();
+        }
+    }
+
+    private TreeSyncResult sync(File dir) throws IOException {
+        return new TreeSync().setIndex(index).setPrune(true).sync(handler.getChefDirFile(), dir);
+    }
+
+}
@@ -0,0 +1,75 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Merges SYNCHRONIZE requests that arrive while a converge is running or waiting to run.
+ *
+ * The first request to find no pending batch starts one and becomes its leader; it waits for the handler,
+ * while later requests join the batch. Once the leader gets the handler the batch is closed and converged
+ * in a single chef run -- or two, if it mixes delta and full requests (see ChefHandler.processSynchronize).
+ * Every message shares its run's progress and result.
+ */
+@Slf4j
+public class ChefSyncCoalescer {
+
+    private final ChefHandler handler;
+    private Batch pending;
+
+    public ChefSyncCoalescer(ChefHandler handler) { this.handler = handler; }
+
+    public boolean submit(ChefMessage message) {
+        final Batch batch;
+        final boolean leader;
+        synchronized (this) {
+            leader = pending == null;
+            if (leader) pending = new Batch();
+            batch = pending;
+            batch.messages.add(message);
+        }
+        if (!leader) return batch.await();
+
+        try {
+            batch.result = handler.processSynchronize(this, batch);
+        } catch (RuntimeException e) {
+            batch.error = e;
+            throw e;
+        } finally {
+            batch.latch.countDown();
+        }
+        return batch.result;
+    }
+
+    /**
+     * Called by the handler once it is ready to run: no more messages can join after this.
+     * @return the messages to synchronize, the leader's first
+     */
+    protected synchronized List<ChefMessage> close(Batch batch) {
+        if (pending == batch) pending = null;
+        return new ArrayList<>(batch.messages);
+    }
+
+    protected static class Batch {
+        private final List<ChefMessage> messages = new ArrayList<>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean result;
+        private volatile RuntimeException error;
+
+        boolean await() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                return die("await: interrupted waiting for synchronize");
+            }
+            if (error != null) throw error;
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package rooty.toots.chef;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.system.Sleep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Serializes ChefMessages through a single worker thread, so messages delivered concurrently can be grouped.
+ *
+ * When an ADD reaches the head of the queue, the worker waits batchWindowMillis for more messages, then drains
+ * the queue. Consecutive ADDs are handed to ChefHandler.processAdds as a group, consecutive SYNCHRONIZEs are
+ * coalesced into one converge; everything else is processed one at a time, in arrival order. Callers block until their own message has been processed.
+ */
+@Slf4j
+public class ChefWorkQueue implements Runnable {
+
+    private final ChefHandler handler;
+    private final BlockingQueue<Ticket> queue = new LinkedBlockingQueue<>();
+    private Thread thread;
+
+    public ChefWorkQueue(ChefHandler handler) { this.handler = handler; }
+
+    public boolean submit(ChefMessage message) {
+        final Ticket ticket = new Ticket(message);
+        queue.add(ticket);
+        start();
+        return ticket.await();
+    }
+
+    private synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, "ChefWorkQueue");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override public void run() {
+        while (true) {
+            final List<Ticket> tickets = new ArrayList<>();
+            try {
+                tickets.add(queue.take());
+                if (tickets.get(0).message.isAdd()) Sleep.sleep(handler.getBatchWindowMillis());
+                queue.drainTo(tickets);
+                process(tickets);
+
+            } catch (InterruptedException e) {
+                log.warn("run: interrupted, exiting");
+                return;
+
+            } catch (RuntimeException e) {
+                log.error("run: error processing chef messages: "+e, e);
+                for (Ticket t : tickets) t.fail(e);
+            }
+        }
+    }
+
+    protected void process(List<Ticket> tickets) {
+        int i = 0;
+        while (i < tickets.size()) {
+            final Ticket ticket = tickets.get(i);
+            if (ticket.message.isAdd()) {
+                final List<Ticket> adds = new ArrayList<>();
+                while (i < tickets.size() && tickets.get(i).message.isAdd()) adds.add(tickets.get(i++));
+                try {
+                    handler.processAdds(messages(adds));
+                    for (Ticket t : adds) t.done(true);
+                } catch (RuntimeException e) {
+                    for (Ticket t : adds) t.fail(e);
+                }
+            } else if (ticket.message.isSynchronize()) {
+                // SYNCHRONIZEs that piled up while something else was running only need one converge
+                final List<Ticket> syncs = new ArrayList<>();
+                while (i < tickets.size() && tickets.get(i).message.isSynchronize()) syncs.add(tickets.get(i++));
+                try {
+                    final boolean result = handler.processSynchronize(messages(syncs));
+                    for (Ticket t : syncs) t.done(result);
+                } catch (RuntimeException e) {
+                    for (Ticket t : syncs) t.fail(e);
+                }
+            } else {
+                try {
+                    ticket.done(handler.processMessage(ticket.message));
+                } catch (RuntimeException e) {
+                    ticket.fail(e);
+                }
+                i++;
+            }
+        }
+    }
+
+    protected static List<ChefMessage> messages(List<Ticket> tickets) {
+        final List<ChefMessage> messages = new ArrayList<>(tickets.size());
+        for (Ticket t : tickets) messages.add(t.message);
+        return messages;
+    }
+
+    protected static class Ticket {
+        final ChefMessage message;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean result;
+        private volatile RuntimeException error;
+
+        Ticket(ChefMessage message) { this.message = message; }
+
+        void done(boolean result) { this.result = result; latch.countDown(); }
+
+        void fail(RuntimeException e) {
+            if (latch.getCount() == 0) return;
+            this.error = e;
+            latch.countDown();
+        }
+
+        boolean await() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                return die("await: interrupted waiting for "+message);
+            }
+            if (error != null) throw error;
+            return result;
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.io.File;
+import java.util.List;
 
 import static org.cobbzilla.util.io.FileUtil.abs;
 
@@ -22,7 +23,7 @@ public class DummyChefHandler extends ChefHandler {
 
     @Override protected void runChefSolo(File chefDir, String script, String cookbook, ChefMessage chefMessage) { /* noop */ }
 
-    @Override protected void runChefSolo(File chefDir, File runlist, ChefMessage chefMessage) throws Exception { /* noop */ }
+    @Override protected void runChefSolo(File chefDir, File runlist, ChefMessage chefMessage, List<ChefMessage> followers) throws Exception { /* noop */ }
 
     @Override protected boolean useSudo() { return false; }
 
@@ -0,0 +1,51 @@
+package rooty.toots.metrics;
+
+/**
+ * Tracks count/sum/min/max and a power-of-two bucketed distribution, which is enough
+ * to estimate percentiles without retaining individual samples.
+ */
+public class Histogram {
+
+    public static final int NUM_BUCKETS = 48;
+
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private final long[] buckets = new long[NUM_BUCKETS];
+
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        count++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+        buckets[bucket(value)]++;
+    }
+
+    // bucket i holds values in [2^(i-1), 2^i), bucket 0 holds zero
+    private static int bucket(long value) {
+        final int b = 64 - Long.numberOfLeadingZeros(value);
+        return b >= NUM_BUCKETS ? NUM_BUCKETS-1 : b;
+    }
+
+    private long percentile(double pct) {
+        if (count == 0) return 0;
+        final long threshold = (long) Math.ceil(count * pct);
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= threshold) return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+        }
+        return max;
+    }
+
+    public synchronized HistogramSnapshot getSnapshot() {
+        return new HistogramSnapshot(count, sum,
+                count == 0 ? 0 : min,
+                count == 0 ? 0 : max,
+                count == 0 ? 0 : sum / count,
+                percentile(0.5), percentile(0.95), percentile(0.99));
+    }
+
+}
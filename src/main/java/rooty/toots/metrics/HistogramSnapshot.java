@@ -0,0 +1,20 @@
+package rooty.toots.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@NoArgsConstructor @AllArgsConstructor
+public class HistogramSnapshot {
+
+    @Getter @Setter private long count;
+    @Getter @Setter private long sum;
+    @Getter @Setter private long min;
+    @Getter @Setter private long max;
+    @Getter @Setter private long mean;
+    @Getter @Setter private long p50;
+    @Getter @Setter private long p95;
+    @Getter @Setter private long p99;
+
+}
@@ -0,0 +1,67 @@
+package rooty.toots.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+
+    @Override public void increment(String name) { increment(name, 1); }
+
+    @Override public void increment(String name, long delta) { atomic(counters, name).addAndGet(delta); }
+
+    @Override public void gauge(String name, long value) { atomic(gauges, name).set(value); }
+
+    @Override public void record(String name, long value) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        h.record(value);
+    }
+
+    @Override public void time(String name, long startMillis) { record(name, Metrics.now() - startMillis); }
+
+    @Override public void mark(String name) {
+        Meter m = meters.get(name);
+        if (m == null) {
+            meters.putIfAbsent(name, new Meter());
+            m = meters.get(name);
+        }
+        m.mark();
+    }
+
+    @Override public MetricsSnapshot getSnapshot() {
+        final MetricsSnapshot snapshot = new MetricsSnapshot();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.getCounters().put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, AtomicLong> entry : gauges.entrySet()) {
+            snapshot.getGauges().put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            snapshot.getHistograms().put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+            snapshot.getMeters().put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        return snapshot;
+    }
+
+    private AtomicLong atomic(ConcurrentMap<String, AtomicLong> map, String name) {
+        AtomicLong value = map.get(name);
+        if (value == null) {
+            map.putIfAbsent(name, new AtomicLong());
+            value = map.get(name);
+        }
+        return value;
+    }
+
+}
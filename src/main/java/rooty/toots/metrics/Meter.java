@@ -0,0 +1,38 @@
+package rooty.toots.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts events in a sliding one-minute window, using one bucket per second.
+ */
+public class Meter {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private long total = 0;
+    private final long[] counts = new long[WINDOW_SECONDS];
+    private final long[] seconds = new long[WINDOW_SECONDS];
+
+    public synchronized void mark() {
+        final long second = TimeUnit.MILLISECONDS.toSeconds(Metrics.now());
+        final int slot = (int) (second % WINDOW_SECONDS);
+        if (seconds[slot] != second) {
+            seconds[slot] = second;
+            counts[slot] = 0;
+        }
+        counts[slot]++;
+        total++;
+    }
+
+    public synchronized long getLastMinute() {
+        final long second = TimeUnit.MILLISECONDS.toSeconds(Metrics.now());
+        long sum = 0;
+        for (int i=0; i<WINDOW_SECONDS; i++) {
+            if (second - seconds[i] < WINDOW_SECONDS) sum += counts[i];
+        }
+        return sum;
+    }
+
+    public synchronized MeterSnapshot getSnapshot() { return new MeterSnapshot(total, getLastMinute()); }
+
+}
@@ -0,0 +1,14 @@
+package rooty.toots.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@NoArgsConstructor @AllArgsConstructor
+public class MeterSnapshot {
+
+    @Getter @Setter private long total;
+    @Getter @Setter private long lastMinute;
+
+}
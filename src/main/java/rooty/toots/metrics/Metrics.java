@@ -0,0 +1,19 @@
+package rooty.toots.metrics;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+public class Metrics {
+
+    public static long now () { return System.currentTimeMillis(); }
+
+    public static MetricsRegistry newRegistry(String className) {
+        if (empty(className)) return new InMemoryMetricsRegistry();
+        try {
+            return (MetricsRegistry) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            return die("newRegistry: error instantiating "+className+": "+e, e);
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package rooty.toots.metrics;
+
+/**
+ * A minimal instrumentation surface: counters, gauges, histograms (timers are histograms of elapsed millis)
+ * and one-minute meters. Handlers hold one of these; the default is an InMemoryMetricsRegistry, but any
+ * implementation with a no-arg constructor can be plugged in by class name (see Metrics.newRegistry)
+ */
+public interface MetricsRegistry {
+
+    public void increment(String name);
+
+    public void increment(String name, long delta);
+
+    public void gauge(String name, long value);
+
+    public void record(String name, long value);
+
+    public void time(String name, long startMillis);
+
+    public void mark(String name);
+
+    public MetricsSnapshot getSnapshot();
+
+}
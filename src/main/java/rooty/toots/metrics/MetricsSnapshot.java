@@ -0,0 +1,17 @@
+package rooty.toots.metrics;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MetricsSnapshot {
+
+    @Getter @Setter private long ctime = Metrics.now();
+    @Getter @Setter private Map<String, Long> counters = new TreeMap<>();
+    @Getter @Setter private Map<String, Long> gauges = new TreeMap<>();
+    @Getter @Setter private Map<String, HistogramSnapshot> histograms = new TreeMap<>();
+    @Getter @Setter private Map<String, MeterSnapshot> meters = new TreeMap<>();
+
+}
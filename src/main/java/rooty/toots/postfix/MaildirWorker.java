@@ -0,0 +1,124 @@
+package rooty.toots.postfix;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.IoThrottle;
+import rooty.toots.util.ParallelDelete;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.io.FileUtil.abs;
+
+/**
+ * Creates Maildir trees when accounts are added and reclaims them when accounts are removed.
+ *
+ * Removal first renames the mailbox into a trash dir (a cheap, atomic rename on the same filesystem),
+ * so a re-added account always starts with a fresh mailbox. The slow part -- archiving or deleting the
+ * trashed tree -- happens on a background thread, using a throttled ParallelDelete.
+ */
+@Slf4j
+public class MaildirWorker {
+
+    public static final String[] MAILDIR_SUBDIRS = {"cur", "new", "tmp"};
+    public static final String TRASH_DIR = ".trash";
+
+    private final PostfixHandler handler;
+    private final ParallelDelete deleter;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "MaildirWorker");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    public MaildirWorker(PostfixHandler handler) {
+        this.handler = handler;
+        this.deleter = new ParallelDelete(handler.getMaildirDeleteParallelism(), new IoThrottle(handler.getMaildirDeleteOpsPerSecond()));
+    }
+
+    private MetricsRegistry metrics() { return handler.getMetrics(); }
+
+    public File getUserDir(String user) { return new File(handler.getVmailboxDir(), handler.getLocalDomain() + "/" + user); }
+
+    public Future<?> provision(final String user) {
+        return executor.submit(new Runnable() {
+            @Override public void run() { createMaildir(user); }
+        });
+    }
+
+    protected void createMaildir(String user) {
+        final long start = Metrics.now();
+        final File maildir = new File(getUserDir(user), "Maildir");
+        try {
+            for (String sub : MAILDIR_SUBDIRS) Files.createDirectories(new File(maildir, sub).toPath());
+            final String owner = handler.getMaildirOwner();
+            if (!empty(owner)) {
+                final UserPrincipal principal = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(owner);
+                Files.setOwner(getUserDir(user).toPath(), principal);
+                Files.setOwner(maildir.toPath(), principal);
+                for (String sub : MAILDIR_SUBDIRS) Files.setOwner(new File(maildir, sub).toPath(), principal);
+            }
+            metrics().increment("postfix.maildir.provisioned");
+
+        } catch (Exception e) {
+            metrics().increment("postfix.maildir.provision.errors");
+            log.error("createMaildir: error creating "+abs(maildir)+": "+e, e);
+
+        } finally {
+            metrics().time("postfix.maildir.provision", start);
+        }
+    }
+
+    /**
+     * Moves the user's mailbox out of the way immediately, then archives or deletes it in the background.
+     * @return the background job, or null if the user had no mailbox
+     */
+    public Future<?> reclaim(String user) throws IOException {
+        final File userDir = getUserDir(user);
+        if (!Files.exists(userDir.toPath(), LinkOption.NOFOLLOW_LINKS)) return null;
+
+        final File trash = FileUtil.mkdirOrDie(new File(handler.getVmailboxDir(), TRASH_DIR));
+        final File trashed = new File(trash, handler.getLocalDomain() + "_" + user + "_" + System.currentTimeMillis());
+        Files.move(userDir.toPath(), trashed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        return executor.submit(new Runnable() {
+            @Override public void run() { disposeOf(trashed); }
+        });
+    }
+
+    protected void disposeOf(File trashed) {
+        final long start = Metrics.now();
+        try {
+            final String archiveDir = handler.getMaildirArchiveDir();
+            if (!empty(archiveDir)) {
+                final File archive = FileUtil.mkdirOrDie(new File(archiveDir));
+                Files.move(trashed.toPath(), new File(archive, trashed.getName()).toPath());
+                metrics().increment("postfix.maildir.archived");
+            } else {
+                metrics().increment("postfix.maildir.reclaimed.bytes", deleter.delete(trashed));
+                metrics().increment("postfix.maildir.deleted");
+            }
+
+        } catch (Exception e) {
+            metrics().increment("postfix.maildir.reclaim.errors");
+            log.error("disposeOf: error reclaiming "+abs(trashed)+": "+e, e);
+
+        } finally {
+            metrics().time("postfix.maildir.reclaim", start);
+        }
+    }
+
+}
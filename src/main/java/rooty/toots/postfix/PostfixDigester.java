@@ -5,17 +5,18 @@ import org.apache.commons.exec.CommandLine;
 import org.cobbzilla.util.io.FileUtil;
 import org.cobbzilla.util.string.StringUtil;
 import org.cobbzilla.util.system.CommandShell;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
 @Slf4j
 public class PostfixDigester {
@@ -28,30 +29,35 @@ public class PostfixDigester {
 
     public static void digest(PostfixHandler handler) throws IOException {
 
+        final MetricsRegistry metrics = handler.getMetrics();
+        final long start = Metrics.now();
+
         final File vmailboxFile = handler.getVmailboxFile();
-        final String origData = FileUtil.toString(vmailboxFile);
+        final String origData = read(metrics, vmailboxFile);
         try {
             // write vmailbox file
             final String admin = handler.getAdmin();
             final String localDomain = handler.getLocalDomain();
             final Set<String> domains = handler.getDomains();
 
-            try (Writer writer = new FileWriter(vmailboxFile)) {
-                writer.write(VMAILBOX_PREAMBLE.replace("HOSTNAME", localDomain));
-                for (String domain : domains) {
-                    for (String user : handler.getUsers()) {
-                        if (admin != null && user.equals(admin)) {
-                            writer.write(user + "@" + domain + "  " + localDomain + "/postmaster/Maildir/\n");
-                        } else {
-                            writer.write(user + "@" + domain + "  " + localDomain + "/" + user + "/Maildir/\n");
-                        }
+            final StringBuilder vmailbox = new StringBuilder(VMAILBOX_PREAMBLE.replace("HOSTNAME", localDomain));
+            int vmailboxEntries = 2;
+            for (String domain : domains) {
+                for (String user : handler.getUsers()) {
+                    if (admin != null && user.equals(admin)) {
+                        vmailbox.append(user).append("@").append(domain).append("  ").append(localDomain).append("/postmaster/Maildir/\n");
+                    } else {
+                        vmailbox.append(user).append("@").append(domain).append("  ").append(localDomain).append("/").append(user).append("/Maildir/\n");
                     }
+                    vmailboxEntries++;
                 }
             }
+            write(metrics, vmailboxFile, vmailbox.toString());
+            metrics.gauge("postfix.vmailbox.entries", vmailboxEntries);
 
             // update virtual_mailbox_domains in main.cf
             final File cfFile = new File(handler.getMainCf());
-            final String mainCf = FileUtil.toString(cfFile);
+            final String mainCf = read(metrics, cfFile);
             final StringBuilder b = new StringBuilder(mainCf.length());
             for (String line : mainCf.split("\n")) {
                 if (line.trim().startsWith("virtual_mailbox_domains")) {
@@ -68,34 +74,74 @@ public class PostfixDigester {
                 b.append("\n");
             }
             final String newConfig = b.toString();
-            if (!newConfig.equals(mainCf)) FileUtil.toFile(cfFile, newConfig);
+            if (!newConfig.equals(mainCf)) write(metrics, cfFile, newConfig);
+            metrics.gauge("postfix.domains", domains.size());
 
             // update virtual file with aliases -- same set of aliases for each domain (for now)
-            try (Writer writer = new FileWriter(handler.getVirtualFile())) {
-                for (String domain : handler.getDomains()) {
-                    final Map<String, List<String>> aliases = handler.getAliases();
-                    for (Map.Entry<String, List<String>> entry : aliases.entrySet()) {
-                        final String alias = domain.equals(handler.getLocalDomain()) ? entry.getKey() : entry.getKey()+"@"+domain;
-                        writer.write("\n" + alias + "    " + StringUtil.toString(entry.getValue(), ", "));
-                    }
+            final StringBuilder virtual = new StringBuilder();
+            int virtualEntries = 0;
+            for (String domain : handler.getDomains()) {
+                final Map<String, List<String>> aliases = handler.getAliases();
+                for (Map.Entry<String, List<String>> entry : aliases.entrySet()) {
+                    final String alias = domain.equals(handler.getLocalDomain()) ? entry.getKey() : entry.getKey()+"@"+domain;
+                    virtual.append("\n").append(alias).append("    ").append(StringUtil.toString(entry.getValue(), ", "));
+                    virtualEntries++;
                 }
             }
+            write(metrics, handler.getVirtualFile(), virtual.toString());
+            metrics.gauge("postfix.virtual.entries", virtualEntries);
 
-            CommandShell.exec(new CommandLine("postmap").addArgument(abs(vmailboxFile)));
-            CommandShell.exec(new CommandLine("postmap").addArgument(abs(handler.getVirtualFile())));
-            CommandShell.exec(RESTART_POSTFIX);
+            postmap(metrics, vmailboxFile);
+            postmap(metrics, handler.getVirtualFile());
+            restart(metrics);
 
         } catch (Exception e) {
             log.error("Error applying new config, reverting to origData: "+e, e);
+            metrics.increment("postfix.rollbacks");
             try {
-                FileUtil.toFile(vmailboxFile, origData);
-                CommandShell.exec(new CommandLine("postmap").addArgument(abs(vmailboxFile)));
-                CommandShell.exec(RESTART_POSTFIX);
-                die("Error applying new config, successfully reverted to origData. Problem was: "+e, e);
+                write(metrics, vmailboxFile, origData);
+                postmap(metrics, vmailboxFile);
+                restart(metrics);
 
             } catch (Exception whoa) {
+                metrics.increment("postfix.rollbacks.failed");
                 die("Error reverting: "+whoa, whoa);
             }
+            die("Error applying new config, successfully reverted to origData. Problem was: "+e, e);
+        } finally {
+            metrics.time("postfix.digest", start);
+        }
+    }
+
+    private static String read(MetricsRegistry metrics, File file) throws IOException {
+        final String data = FileUtil.toString(file);
+        metrics.increment("postfix.io.read.bytes", data.getBytes(UTF8cs).length);
+        return data;
+    }
+
+    private static void write(MetricsRegistry metrics, File file, String data) throws IOException {
+        FileUtil.toFile(file, data);
+        final int bytes = data.getBytes(UTF8cs).length;
+        metrics.increment("postfix.io.write.bytes", bytes);
+        metrics.gauge("postfix.file."+file.getName()+".bytes", bytes);
+    }
+
+    private static void postmap(MetricsRegistry metrics, File file) throws IOException {
+        final long start = Metrics.now();
+        try {
+            CommandShell.exec(new CommandLine("postmap").addArgument(abs(file)));
+        } finally {
+            metrics.time("postfix.postmap", start);
+        }
+    }
+
+    private static void restart(MetricsRegistry metrics) throws IOException {
+        final long start = Metrics.now();
+        try {
+            CommandShell.exec(RESTART_POSTFIX);
+        } finally {
+            metrics.time("postfix.restart", start);
+            metrics.mark("postfix.restarts");
         }
     }
 
@@ -15,6 +15,9 @@ import rooty.events.account.AccountEvent;
 import rooty.events.account.NewAccountEvent;
 import rooty.events.account.RemoveAccountEvent;
 import rooty.events.email.*;
+import rooty.toots.metrics.Metrics;
+import rooty.toots.metrics.MetricsRegistry;
+import rooty.toots.util.ParallelDelete;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -26,6 +29,7 @@ import java.util.*;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 
 @Slf4j
 public class PostfixHandler extends RootyHandlerBase {
@@ -34,6 +38,16 @@ public class PostfixHandler extends RootyHandlerBase {
     @Getter @Setter private String vmailbox;    // mailbox file
     @Getter @Setter private String vmailboxDir; // mailbox top-level directory
 
+    // Maildir lifecycle: removed mailboxes are moved to maildirArchiveDir if set, otherwise deleted
+    @Getter @Setter private String maildirArchiveDir;
+    @Getter @Setter private String maildirOwner;
+    @Getter @Setter private int maildirDeleteParallelism = ParallelDelete.DEFAULT_PARALLELISM;
+    @Getter @Setter private int maildirDeleteOpsPerSecond = 500;
+
+    @Getter(value=AccessLevel.PROTECTED, lazy=true) private final MaildirWorker maildirWorker = initMaildirWorker();
+    private MaildirWorker initMaildirWorker() { return new MaildirWorker(this); }
+    private boolean manageMaildirs() { return !empty(vmailboxDir); }
+
     @Setter private String mainCf;
     public String getMainCf () { return empty(mainCf) ? "/etc/postfix/main.cf" : mainCf; }
 
@@ -58,6 +72,11 @@ public class PostfixHandler extends RootyHandlerBase {
     @Getter(value=AccessLevel.PROTECTED, lazy=true) private final File adminFile = initAdminFile();
     private File initAdminFile() { return new File(vmailbox+".admin"); }
 
+    // set metricsClass to plug in a MetricsRegistry other than the default in-memory one
+    @Getter @Setter private String metricsClass;
+    @Getter(lazy=true) private final MetricsRegistry metrics = initMetrics();
+    private MetricsRegistry initMetrics() { return Metrics.newRegistry(metricsClass); }
+
     @Getter(value=AccessLevel.PROTECTED, lazy=true) private final String localDomain = initLocalDomain();
     private String initLocalDomain() { return CommandShell.hostname(); }
 
@@ -175,7 +194,8 @@ public class PostfixHandler extends RootyHandlerBase {
     @Override public boolean accepts(RootyMessage message) {
         return message instanceof AccountEvent
                 || message instanceof EmailDomainEvent
-                || message instanceof EmailAliasEvent;
+                || message instanceof EmailAliasEvent
+                || message instanceof PostfixMetricsMessage;
     }
 
     private interface Processor<T extends RootyMessage> {
@@ -206,6 +226,13 @@ public class PostfixHandler extends RootyHandlerBase {
         @Override public boolean process(RemoveEmailAliasEvent message) throws IOException { return handleRemoveAlias(message); }
     };
 
+    private final Processor metricsProcessor = new Processor<PostfixMetricsMessage>() {
+        @Override public boolean process(PostfixMetricsMessage message) throws IOException {
+            message.setResults(toJsonOrDie(getMetrics().getSnapshot()));
+            return true;
+        }
+    };
+
     @Getter(value=AccessLevel.PRIVATE, lazy=true) private final Map<Class, Processor> processorMap = initProcessorMap();
     private Map<Class, Processor> initProcessorMap() {
         final Map<Class, Processor> map = new HashMap<>();
@@ -215,10 +242,13 @@ public class PostfixHandler extends RootyHandlerBase {
         map.put(RemoveEmailDomainEvent.class, removeDomainProcessor);
         map.put(NewEmailAliasEvent.class, newAliasProcessor);
         map.put(RemoveEmailAliasEvent.class, removeAliasProcessor);
+        map.put(PostfixMetricsMessage.class, metricsProcessor);
         return map;
     }
 
     public synchronized boolean process(RootyMessage message) {
+        final long start = Metrics.now();
+        final String eventMetric = "postfix.event."+message.getClass().getSimpleName();
         try {
             final Processor p = getProcessorMap().get(message.getClass());
             if (p == null) {
@@ -228,9 +258,13 @@ public class PostfixHandler extends RootyHandlerBase {
             return p.process(message);
 
         } catch (Exception e) {
+            getMetrics().increment(eventMetric+".errors");
             final String msg = "Error processing message ("+message+"): "+e;
             log.error(msg, e);
             return die(msg, e);
+
+        } finally {
+            getMetrics().time(eventMetric, start);
         }
     }
 
@@ -249,10 +283,12 @@ public class PostfixHandler extends RootyHandlerBase {
         }
 
         boolean doDigest = false;
+        boolean provision = false;
         final Set<String> users = getUsers();
         if (!users.contains(username)) {
             addUser(username);
             doDigest = true;
+            provision = true;
         }
 
         if (event.isAdmin()) {
@@ -261,6 +297,7 @@ public class PostfixHandler extends RootyHandlerBase {
                 symlinkToPostmaster(username);
                 setAdmin(username);
                 doDigest = true;
+                provision = false; // admin mailbox is the postmaster mailbox
 
             } else {
                 log.warn("Admin already set to " + admin + ", not changing to " + username);
@@ -268,6 +305,7 @@ public class PostfixHandler extends RootyHandlerBase {
         }
 
         if (doDigest) digest();
+        if (provision && manageMaildirs()) getMaildirWorker().provision(username);
         return true;
     }
 
@@ -306,6 +344,15 @@ public class PostfixHandler extends RootyHandlerBase {
             users.remove(username);
             setUsers(users);
             digest();
+            if (manageMaildirs()) {
+                // the account is already gone; a mailbox we couldn't move aside must not fail the removal
+                try {
+                    getMaildirWorker().reclaim(username);
+                } catch (Exception e) {
+                    getMetrics().increment("postfix.maildir.reclaim.errors");
+                    log.error("handleRemoveAccount: error reclaiming mailbox for "+username+", leaving it in place: "+e, e);
+                }
+            }
         }
         return true;
     }
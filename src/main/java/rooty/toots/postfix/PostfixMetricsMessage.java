@@ -0,0 +1,10 @@
+package rooty.toots.postfix;
+
+import lombok.NoArgsConstructor;
+import rooty.RootyMessage;
+
+/**
+ * Ask the PostfixHandler for a JSON snapshot of its metrics, returned in the results
+ */
+@NoArgsConstructor
+public class PostfixMetricsMessage extends RootyMessage {}
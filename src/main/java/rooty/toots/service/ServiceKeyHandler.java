@@ -9,14 +9,14 @@ import org.cobbzilla.util.security.ShaUtil;
 import org.cobbzilla.util.system.CommandShell;
 import rooty.RootyMessage;
 import rooty.toots.chef.AbstractChefHandler;
-import rooty.toots.vendor.VendorSettingDisplayValue;
-import rooty.toots.vendor.VendorSettingHandler;
+import rooty.toots.util.ContentScanResult;
+import rooty.toots.util.ContentScanner;
+import rooty.toots.vendor.VendorDefaultIndex;
 
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import java.io.File;
 import java.io.FileFilter;
-import java.util.List;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
@@ -76,18 +76,8 @@ public class ServiceKeyHandler extends AbstractChefHandler {
         switch (request.getOperation()) {
             case ALLOW_SSH:
                 try {
-                    boolean allow = true;
-                    if (vendorKeyExists()) {
-                        allow = false;
-                    } else {
-                        final List<VendorSettingDisplayValue> values = VendorSettingHandler.fetchAllSettings(getChefDir());
-                        for (VendorSettingDisplayValue value : values) {
-                            if (value.getValue().equals(VendorSettingHandler.VENDOR_DEFAULT)) {
-                                allow = false;
-                                break;
-                            }
-                        }
-                    }
+                    // the index answers without touching disk; only look for the default key once it says there are no defaults
+                    final boolean allow = !VendorDefaultIndex.forChefDir(getChefDir()).hasDefaults() && !vendorKeyExists();
                     request.setResults(String.valueOf(allow));
 
                 } catch (Exception e) {
@@ -137,8 +127,8 @@ public class ServiceKeyHandler extends AbstractChefHandler {
         if (defaultSsl.exists() && ShaUtil.sha256_file(defaultSsl).equals(defaultSslKeySha)) return true;
 
         try {
-            int count = Integer.parseInt(CommandShell.execScript("find " + getVendorKeyRootPaths() + " -type f -exec grep -l -- \"" + FileUtil.toString(defaultSsl) + "\" {} \\; | wc -l | tr -d ' '").trim());
-            return count == 0;
+            final ContentScanResult result = new ContentScanner().addRoots(getVendorKeyRootPaths()).find(FileUtil.toString(defaultSsl));
+            return !result.hasMatches();
 
         } catch (Exception e) {
             log.warn("Error looking for default key: "+e, e);
@@ -9,11 +9,16 @@ import org.cobbzilla.util.system.Command;
 import org.cobbzilla.util.system.CommandShell;
 import rooty.RootyHandlerBase;
 import rooty.RootyMessage;
+import rooty.toots.util.ContentScanResult;
+import rooty.toots.util.ContentScanner;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.io.FileUtil.abs;
 
 @Slf4j
@@ -72,18 +77,22 @@ public class SslCertHandler extends RootyHandlerBase {
         deleteFromKeystore(name);
         addToKeystore(name, pemFile);
 
-        // Overwrite any other files that might have the same SHA
+        // Overwrite any other copies of the previous cert and key
         // This will find things that are in chef_home/chef/data_bags and cloudos/app-repository
-        if (prevPem != null) {
-            CommandShell.execScript("for f in $(find "+getVendorKeyRootPaths()+" -type f -exec grep -l -- \"$(cat " + abs(pemFile) + ")\" {} \\;) ; do cat " + abs(pemFile) + " > ${f} ; done");
-        }
-        if (prevKey != null) {
-            CommandShell.execScript("for f in $(find "+getVendorKeyRootPaths()+" -type f -exec grep -l -- \"$(cat " + abs(keyFile) + ")\" {} \\;) ; do cat " + abs(keyFile) + " > ${f} ; done");
-        }
+        replaceCopies(prevPem, message.getData().getPem());
+        replaceCopies(prevKey, message.getData().getKey());
 
         return true;
     }
 
+    private void replaceCopies(String prev, String current) {
+        if (empty(prev) || prev.equals(current)) return;
+        final ContentScanResult result = new ContentScanner().addRoots(getVendorKeyRootPaths()).replace(prev, current);
+        final Set<File> missed = new TreeSet<>(result.getMatched());
+        missed.removeAll(result.getReplaced());
+        if (!missed.isEmpty()) log.warn("replaceCopies: previous value still exists in some files: "+missed);
+    }
+
     protected String getVendorKeyRootPaths() { return "/etc /home"; }
 
     private void addToKeystore(String name, File pemFile) {
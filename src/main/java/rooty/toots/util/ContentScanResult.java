@@ -0,0 +1,33 @@
+package rooty.toots.util;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * What a ContentScanner found, and what it replaced if it was asked to.
+ */
+@ToString(of={"filesScanned", "bytesScanned", "errors"})
+public class ContentScanResult {
+
+    @Getter @Setter private Set<File> matched = new TreeSet<>();
+    @Getter @Setter private Set<File> replaced = new TreeSet<>();
+    @Getter @Setter private Map<File, List<Long>> offsets = new TreeMap<>(); // only if the scanner records offsets
+    @Getter @Setter private long filesScanned;
+    @Getter @Setter private long bytesScanned;
+    @Getter @Setter private long filesSkipped; // too big or binary
+    @Getter @Setter private long errors;
+
+    public boolean hasMatches () { return !matched.isEmpty(); }
+
+    synchronized void scanned (long bytes) { filesScanned++; bytesScanned += bytes; }
+    synchronized void skipped () { filesSkipped++; }
+    synchronized void error () { errors++; }
+    synchronized void matched (File f) { matched.add(f); }
+    synchronized void replaced (File f) { replaced.add(f); }
+    synchronized void offsets (File f, List<Long> found) { offsets.put(f, found); }
+
+}
@@ -0,0 +1,331 @@
+package rooty.toots.util;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * An in-process replacement for "find roots -type f -exec grep -l value {} \;", which can also replace the
+ * value in every matching file during the same pass.
+ *
+ * Directories are walked with a fork-join pool, one task per directory. Each regular file is memory-mapped and
+ * searched with Boyer-Moore-Horspool. Files larger than maxFileSize, and binary files (a NUL in the first
+ * BINARY_SNIFF_BYTES, the same test grep uses) unless skipBinary is false, are skipped: they are still searched,
+ * and reported in matched if they contain the value, but they are never rewritten. Symlinks are never followed,
+ * and nothing under an exclude is scanned.
+ */
+@Slf4j @Accessors(chain=true)
+public class ContentScanner {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+    public static final int BINARY_SNIFF_BYTES = 8000;
+    public static final int LARGE_FILE_WINDOW = 64 * 1024 * 1024; // how much of a skipped large file to map at once
+
+    @Getter @Setter private List<File> roots = new ArrayList<>();
+    @Getter @Setter private List<File> excludes = new ArrayList<>();
+    @Getter @Setter private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    @Getter @Setter private boolean skipBinary = true;
+    @Getter @Setter private int parallelism = DEFAULT_PARALLELISM;
+
+    // if true, record the offset of every match, not just which files matched
+    @Getter @Setter private boolean recordOffsets = false;
+
+    public ContentScanner addRoot (File root) { roots.add(root); return this; }
+    public ContentScanner addExclude (File exclude) { excludes.add(exclude); return this; }
+
+    /** @param paths space-separated, as handlers configure them; null or empty adds nothing */
+    public ContentScanner addRoots (String paths) {
+        for (String path : split(paths)) addRoot(new File(path));
+        return this;
+    }
+
+    /** @param paths space-separated, as handlers configure them; null or empty adds nothing */
+    public ContentScanner addExcludes (String paths) {
+        for (String path : split(paths)) addExclude(new File(path));
+        return this;
+    }
+
+    private static List<String> split(String paths) {
+        final List<String> found = new ArrayList<>();
+        if (empty(paths)) return found;
+        for (String path : paths.split("\\s+")) if (!empty(path)) found.add(path);
+        return found;
+    }
+
+    /** @return the files containing value */
+    public ContentScanResult find(String value) { return scan(value, null); }
+
+    /** Replace every occurrence of value with replacement, in every file that contains it */
+    public ContentScanResult replace(String value, String replacement) {
+        if (replacement == null) throw new IllegalArgumentException("no replacement");
+        return scan(value, replacement);
+    }
+
+    private ContentScanResult scan(String value, String replacement) {
+        if (value == null || value.isEmpty()) throw new IllegalArgumentException("no value to scan for");
+        final Needle needle = new Needle(value.getBytes(UTF8cs));
+        final byte[] replacementBytes = replacement == null ? null : replacement.getBytes(UTF8cs);
+
+        final List<Path> excluded = new ArrayList<>(excludes.size());
+        for (File f : excludes) excluded.add(f.toPath().toAbsolutePath().normalize());
+
+        final ContentScanResult result = new ContentScanResult();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final List<ScanTask> tasks = new ArrayList<>();
+            for (File root : roots) {
+                final Path path = root.toPath().toAbsolutePath().normalize();
+                if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) continue;
+                final ScanTask task = new ScanTask(path, needle, replacementBytes, excluded, result);
+                pool.execute(task);
+                tasks.add(task);
+            }
+            for (ScanTask task : tasks) task.join();
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    private class ScanTask extends RecursiveAction {
+
+        private final Path path;
+        private final Needle needle;
+        private final byte[] replacement;
+        private final List<Path> excluded;
+        private final ContentScanResult result;
+
+        public ScanTask(Path path, Needle needle, byte[] replacement, List<Path> excluded, ContentScanResult result) {
+            this.path = path;
+            this.needle = needle;
+            this.replacement = replacement;
+            this.excluded = excluded;
+            this.result = result;
+        }
+
+        private boolean isExcluded(Path p) {
+            for (Path ex : excluded) if (p.startsWith(ex)) return true;
+            return false;
+        }
+
+        @Override protected void compute() {
+            if (isExcluded(path)) return;
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isRegularFile()) {
+                    scanFile(path, attrs.size());
+                    return;
+                }
+                if (!attrs.isDirectory()) return;
+
+                final List<ScanTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            final ScanTask task = new ScanTask(child, needle, replacement, excluded, result);
+                            task.fork();
+                            subtasks.add(task);
+                        } else if (Files.isRegularFile(child, LinkOption.NOFOLLOW_LINKS) && !isExcluded(child)) {
+                            scanFile(child, Files.size(child));
+                        }
+                    }
+                }
+                for (ScanTask task : subtasks) task.join();
+
+            } catch (IOException e) {
+                result.error();
+                log.debug("compute: error scanning "+path+": "+e);
+            }
+        }
+
+        private void scanFile(Path file, long size) {
+            if (size < needle.length()) return;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (size > maxFileSize) {
+                    result.skipped();
+                    final List<Long> found = search(channel, size, needle, recordOffsets);
+                    if (found.isEmpty()) return;
+                    result.matched(file.toFile());
+                    if (recordOffsets) result.offsets(file.toFile(), found);
+                    return;
+                }
+
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                final boolean binary = skipBinary && isBinary(buffer);
+                if (binary) {
+                    result.skipped();
+                } else {
+                    result.scanned(size);
+                }
+                final int pos = needle.indexOf(buffer, 0);
+                if (pos == -1) return;
+
+                result.matched(file.toFile());
+                final boolean rewrite = replacement != null && !binary;
+                if (!recordOffsets && !rewrite) return;
+
+                final List<Long> found = offsets(buffer, pos, needle);
+                if (recordOffsets) result.offsets(file.toFile(), found);
+                if (rewrite) {
+                    rewrite(file, replaceAll(buffer, found, needle, replacement));
+                    result.replaced(file.toFile());
+                }
+
+            } catch (IOException e) {
+                result.error();
+                log.debug("scanFile: error scanning "+file+": "+e);
+            }
+        }
+    }
+
+    public static boolean isBinary(ByteBuffer buffer) {
+        final int limit = Math.min(buffer.limit(), BINARY_SNIFF_BYTES);
+        for (int i=0; i<limit; i++) if (buffer.get(i) == 0) return true;
+        return false;
+    }
+
+    /**
+     * @param offsets the position of every occurrence of needle in buffer
+     * @return the buffer's contents, with every occurrence of needle replaced
+     */
+    static byte[] replaceAll(ByteBuffer buffer, List<Long> offsets, Needle needle, byte[] replacement) {
+        final ByteBuffer out = ByteBuffer.allocate(buffer.limit() + offsets.size() * (replacement.length - needle.length()));
+        int from = 0;
+        for (Long offset : offsets) {
+            final int pos = offset.intValue();
+            copy(buffer, from, pos, out);
+            out.put(replacement);
+            from = pos + needle.length();
+        }
+        copy(buffer, from, buffer.limit(), out);
+        return out.array();
+    }
+
+    /**
+     * Search a file too large to map in one piece, a window at a time. Consecutive windows overlap by one byte
+     * less than the needle, so a match spanning two windows is found in the second.
+     * @param all if false, stop at the first match
+     * @return the offsets of the matches found
+     */
+    static List<Long> search(FileChannel channel, long size, Needle needle, boolean all) throws IOException {
+        final List<Long> found = new ArrayList<>();
+        final int window = Math.max(LARGE_FILE_WINDOW, 2 * needle.length());
+        long next = 0; // matches don't overlap, same as in offsets()
+        for (long start = 0; start + needle.length() <= size; start += window - needle.length() + 1) {
+            final long length = Math.min(window, size - start);
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            for (int pos = needle.indexOf(buffer, (int) Math.max(0, next - start)); pos != -1; pos = needle.indexOf(buffer, pos + needle.length())) {
+                found.add(start + pos);
+                if (!all) return found;
+                next = start + pos + needle.length();
+            }
+            if (start + length >= size) break;
+        }
+        return found;
+    }
+
+    private static List<Long> offsets(ByteBuffer buffer, int first, Needle needle) {
+        final List<Long> offsets = new ArrayList<>();
+        for (int pos = first; pos != -1; pos = needle.indexOf(buffer, pos + needle.length())) offsets.add((long) pos);
+        return offsets;
+    }
+
+    private static void copy(ByteBuffer src, int from, int to, ByteBuffer out) {
+        final ByteBuffer slice = src.duplicate();
+        slice.position(from).limit(to);
+        out.put(slice);
+    }
+
+    /**
+     * Writes to a temp file and renames it into place, so nothing ever sees a half-written file. The temp file is
+     * created with the original's permissions (never wider: these files hold secrets), then given its owner and
+     * group; if those can't be carried over (we are not root), the file is overwritten in place instead, which
+     * keeps them.
+     */
+    private static void rewrite(Path file, byte[] data) throws IOException {
+        final Path temp = file.resolveSibling("." + file.getFileName() + ".scan" + System.nanoTime());
+        try {
+            final PosixFileAttributes attrs = Files.getFileAttributeView(file, PosixFileAttributeView.class) == null
+                    ? null : Files.readAttributes(file, PosixFileAttributes.class);
+            final Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try (SeekableByteChannel channel = attrs == null
+                    ? Files.newByteChannel(temp, options)
+                    : Files.newByteChannel(temp, options, PosixFilePermissions.asFileAttribute(attrs.permissions()))) {
+                final ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            if (attrs != null) {
+                final PosixFileAttributeView view = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+                // the umask may have narrowed the create-time permissions: set them exactly
+                view.setPermissions(attrs.permissions());
+                if (!view.getOwner().equals(attrs.owner())) view.setOwner(attrs.owner());
+                if (!view.readAttributes().group().equals(attrs.group())) view.setGroup(attrs.group());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (FileSystemException e) {
+            log.debug("rewrite: can't replace "+abs(file.toFile())+" atomically ("+e+"), overwriting in place");
+            Files.write(file, data, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** A search pattern, with its Horspool bad-character shift table */
+    static class Needle {
+
+        private final byte[] bytes;
+        private final int[] shift = new int[256];
+
+        Needle(byte[] bytes) {
+            this.bytes = bytes;
+            Arrays.fill(shift, bytes.length);
+            for (int i=0; i<bytes.length-1; i++) shift[bytes[i] & 0xff] = bytes.length - 1 - i;
+        }
+
+        int length() { return bytes.length; }
+
+        /** @return the position of the first occurrence at or after from, or -1 */
+        int indexOf(ByteBuffer buffer, int from) {
+            final int last = bytes.length - 1;
+            final int limit = buffer.limit() - bytes.length;
+            int i = from;
+            while (i <= limit) {
+                int j = last;
+                while (buffer.get(i + j) == bytes[j]) {
+                    if (j == 0) return i;
+                    j--;
+                }
+                i += shift[buffer.get(i + last) & 0xff];
+            }
+            return -1;
+        }
+    }
+
+}
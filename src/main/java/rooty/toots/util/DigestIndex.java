@@ -0,0 +1,96 @@
+package rooty.toots.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.io.FileUtil;
+import org.cobbzilla.util.security.ShaUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+
+/**
+ * Caches SHA-256 digests of files by path, valid as long as size and mtime are unchanged.
+ * If constructed with a file, the index is loaded from and saved to that file.
+ */
+@Slf4j
+public class DigestIndex {
+
+    @NoArgsConstructor @AllArgsConstructor
+    public static class Entry {
+        @Getter @Setter private long size;
+        @Getter @Setter private long mtime;
+        @Getter @Setter private String sha;
+    }
+
+    @NoArgsConstructor
+    public static class Entries {
+        @Getter @Setter private Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    public DigestIndex() { this(null); }
+
+    public DigestIndex(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                entries.putAll(fromJsonOrDie(FileUtil.toString(file), Entries.class).getEntries());
+            } catch (Exception e) {
+                log.warn("DigestIndex: error loading "+abs(file)+", starting empty: "+e);
+            }
+        }
+    }
+
+    public String sha(File f) {
+        final String path = abs(f);
+        final long size = f.length();
+        final long mtime = f.lastModified();
+        final Entry entry = entries.get(path);
+        if (entry != null && entry.getSize() == size && entry.getMtime() == mtime) return entry.getSha();
+
+        final String sha = ShaUtil.sha256_file(f);
+        entries.put(path, new Entry(size, mtime, sha));
+        dirty = true;
+        return sha;
+    }
+
+    /** Record a digest already known for f's current contents, e.g. after only its mtime changed */
+    public void put(File f, String sha) {
+        entries.put(abs(f), new Entry(f.length(), f.lastModified(), sha));
+        dirty = true;
+    }
+
+    public void remove(File f) { if (entries.remove(abs(f)) != null) dirty = true; }
+
+    public int size() { return entries.size(); }
+
+    public synchronized void save() {
+        if (file == null || !dirty) return;
+        final Entries toSave = new Entries();
+        toSave.getEntries().putAll(entries);
+        final File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        try {
+            FileUtil.toFile(temp, toJsonOrDie(toSave));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            log.warn("save: error writing "+abs(file)+": "+e);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package rooty.toots.util;
+
+import lombok.Getter;
+import org.cobbzilla.util.system.Sleep;
+
+/**
+ * Limits filesystem operations to a maximum number per second, shared across all threads using it.
+ * A limit of zero or less means unlimited.
+ */
+public class IoThrottle {
+
+    public static final IoThrottle UNLIMITED = new IoThrottle(0);
+
+    @Getter private final int maxOpsPerSecond;
+    private long windowStart = System.currentTimeMillis();
+    private int opsInWindow = 0;
+
+    public IoThrottle(int maxOpsPerSecond) { this.maxOpsPerSecond = maxOpsPerSecond; }
+
+    public synchronized void acquire() {
+        if (maxOpsPerSecond <= 0) return;
+        final long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            windowStart = now;
+            opsInWindow = 0;
+
+        } else if (opsInWindow >= maxOpsPerSecond) {
+            Sleep.sleep(1000 - (now - windowStart));
+            windowStart = System.currentTimeMillis();
+            opsInWindow = 0;
+        }
+        opsInWindow++;
+    }
+
+}
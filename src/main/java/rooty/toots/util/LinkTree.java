@@ -0,0 +1,91 @@
+package rooty.toots.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * Builds a copy of a directory tree where every regular file is a hard link to the original.
+ * Directories are created fresh (with the same permissions), symlinks are recreated as symlinks.
+ *
+ * Since linked files share an inode with the source, anything that will be modified in place must be
+ * unlinked first with breakLink. Tools that write a temp file and rename it over the target (rsync, mv)
+ * break the link on their own.
+ */
+@Slf4j
+public class LinkTree {
+
+    /**
+     * @return the number of entries linked or created
+     */
+    public static long link(File from, File to) throws IOException {
+        final Path source = from.toPath();
+        final Path target = to.toPath();
+        final long[] count = {0};
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final Path dest = target.resolve(source.relativize(dir));
+                Files.createDirectories(dest);
+                copyPermissions(dir, dest);
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path dest = target.resolve(source.relativize(file));
+                Files.deleteIfExists(dest);
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(dest, Files.readSymbolicLink(file));
+                } else {
+                    try {
+                        Files.createLink(dest, file);
+                    } catch (IOException | UnsupportedOperationException e) {
+                        // different filesystem, or links not supported: fall back to a copy
+                        Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                    }
+                }
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * If the file shares its inode with other links, replace it with a private copy so it can be written safely
+     * @return true if a copy was made
+     */
+    public static boolean breakLink(File file) throws IOException {
+        final Path path = file.toPath();
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) return false;
+        final Integer nlink;
+        try {
+            nlink = (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+        if (nlink == null || nlink <= 1) return false;
+
+        final Path temp = path.resolveSibling("." + file.getName() + ".cow" + System.nanoTime());
+        Files.copy(path, temp, StandardCopyOption.COPY_ATTRIBUTES);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        final PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (view == null) return;
+        try {
+            final PosixFileAttributes attrs = Files.readAttributes(from, PosixFileAttributes.class);
+            view.setPermissions(attrs.permissions());
+        } catch (IOException e) {
+            log.warn("copyPermissions: error copying permissions from "+from+" to "+to+": "+e);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package rooty.toots.util;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Deletes directory trees using a fork-join walk: each subdirectory is deleted by its own task, so wide trees
+ * are removed in parallel. Worker threads run at minimum priority and every unlink goes through an IoThrottle,
+ * so a huge delete does not starve the rest of the system. Symlinks are removed, never followed.
+ */
+@Slf4j
+public class ParallelDelete {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    @Getter private final IoThrottle throttle;
+    private final ForkJoinPool pool;
+
+    public ParallelDelete() { this(DEFAULT_PARALLELISM, IoThrottle.UNLIMITED); }
+
+    public ParallelDelete(int parallelism, IoThrottle throttle) {
+        this.throttle = throttle;
+        this.pool = new ForkJoinPool(parallelism, LOW_PRIORITY_THREADS, null, false);
+    }
+
+    public static final ForkJoinPool.ForkJoinWorkerThreadFactory LOW_PRIORITY_THREADS = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        @Override public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * @param file the file or directory to delete
+     * @return the number of bytes reclaimed
+     */
+    public long delete(File file) {
+        final Path path = file.toPath();
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return 0;
+        return pool.invoke(new DeleteTask(path));
+    }
+
+    public void shutdown() { pool.shutdown(); }
+
+    private class DeleteTask extends RecursiveTask<Long> {
+
+        private final Path path;
+
+        public DeleteTask(Path path) { this.path = path; }
+
+        @Override protected Long compute() {
+            long bytes = 0;
+            try {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    final List<DeleteTask> subtasks = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                        for (Path child : stream) {
+                            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                                final DeleteTask task = new DeleteTask(child);
+                                task.fork();
+                                subtasks.add(task);
+                            } else {
+                                bytes += deleteOne(child);
+                            }
+                        }
+                    }
+                    for (DeleteTask task : subtasks) bytes += task.join();
+                }
+                bytes += deleteOne(path);
+
+            } catch (IOException e) {
+                log.warn("delete: error deleting "+path+": "+e);
+            }
+            return bytes;
+        }
+
+        private long deleteOne(Path p) throws IOException {
+            final BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            throttle.acquire();
+            Files.deleteIfExists(p);
+            return attrs.isRegularFile() ? attrs.size() : 0;
+        }
+    }
+
+}
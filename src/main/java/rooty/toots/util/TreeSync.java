@@ -0,0 +1,146 @@
+package rooty.toots.util;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+
+/**
+ * An in-process replacement for "rsync -a source/ target": copies files whose size or mtime differ, using a
+ * DigestIndex to avoid copying files whose content is unchanged (their mtime is fixed up instead).
+ *
+ * Files are written to a temp file and renamed into place, so readers never see partial files, and hard links
+ * (see LinkTree) are broken rather than written through. Permissions and mtimes are preserved.
+ */
+@Slf4j @Accessors(chain=true)
+public class TreeSync {
+
+    @Getter @Setter private DigestIndex index = new DigestIndex();
+
+    // if true, delete files/dirs in the target that do not exist in the source (like rsync --delete)
+    @Getter @Setter private boolean prune = false;
+
+    public TreeSyncResult sync(File source, File target) throws IOException {
+        final TreeSyncResult result = new TreeSyncResult();
+        sync(source, target, result);
+        return result;
+    }
+
+    public void sync(File source, File target, final TreeSyncResult result) throws IOException {
+        final Path src = source.toPath();
+        final Path dest = target.toPath();
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final Path d = dest.resolve(src.relativize(dir).toString());
+                if (!Files.isDirectory(d)) {
+                    Files.createDirectories(d);
+                    result.getCreatedDirs().add(d.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                syncFile(file.toFile(), dest.resolve(src.relativize(file).toString()).toFile(), result);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) throw e;
+                if (prune) prune(dir, dest.resolve(src.relativize(dir).toString()), result);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Bring a single target file up to date with its source
+     * @return true if the target was created or updated
+     */
+    public boolean syncFile(File source, File target, TreeSyncResult result) throws IOException {
+        final Path src = source.toPath();
+        final Path dest = target.toPath();
+        synchronized (result) { result.setFilesScanned(result.getFilesScanned() + 1); }
+
+        if (Files.isSymbolicLink(src)) {
+            final Path link = Files.readSymbolicLink(src);
+            if (Files.isSymbolicLink(dest) && Files.readSymbolicLink(dest).equals(link)) return false;
+            final boolean existed = Files.exists(dest, LinkOption.NOFOLLOW_LINKS);
+            Files.deleteIfExists(dest);
+            Files.createSymbolicLink(dest, link);
+            recordCopy(result, target, existed, 0);
+            return true;
+        }
+
+        final boolean existed = Files.exists(dest, LinkOption.NOFOLLOW_LINKS);
+        if (existed && Files.isRegularFile(dest, LinkOption.NOFOLLOW_LINKS)) {
+            final long size = source.length();
+            final long mtime = source.lastModified();
+            if (size == target.length()) {
+                if (mtime == target.lastModified()) return false;
+                final String sha = index.sha(source);
+                if (sha.equals(index.sha(target))) {
+                    // same content, different mtime: fix the mtime so the next check is cheap
+                    Files.setLastModifiedTime(dest, FileTime.fromMillis(mtime));
+                    index.put(target, sha);
+                    return false;
+                }
+            }
+        }
+
+        if (!Files.isDirectory(dest.getParent())) {
+            Files.createDirectories(dest.getParent());
+            synchronized (result) { result.getCreatedDirs().add(dest.getParent().toString()); }
+        }
+        final Path temp = dest.resolveSibling("." + target.getName() + ".sync" + System.nanoTime());
+        try {
+            Files.copy(src, temp, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        recordCopy(result, target, existed, source.length());
+        return true;
+    }
+
+    private void recordCopy(TreeSyncResult result, File target, boolean existed, long bytes) {
+        synchronized (result) {
+            if (existed) {
+                result.getUpdated().add(abs(target));
+            } else {
+                result.getCreated().add(abs(target));
+            }
+            result.setBytesCopied(result.getBytesCopied() + bytes);
+        }
+    }
+
+    private void prune(Path sourceDir, Path targetDir, TreeSyncResult result) throws IOException {
+        if (!Files.isDirectory(targetDir)) return;
+        final List<Path> extraneous = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(targetDir)) {
+            for (Path p : stream) {
+                if (!Files.exists(sourceDir.resolve(p.getFileName().toString()), LinkOption.NOFOLLOW_LINKS)) extraneous.add(p);
+            }
+        }
+        for (Path p : extraneous) {
+            if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                FileUtils.deleteDirectory(p.toFile());
+            } else {
+                Files.deleteIfExists(p);
+                index.remove(p.toFile());
+            }
+            synchronized (result) { result.getDeleted().add(p.toString()); }
+        }
+    }
+
+}
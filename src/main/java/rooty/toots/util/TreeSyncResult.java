@@ -0,0 +1,40 @@
+package rooty.toots.util;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a TreeSync changed. Paths are absolute paths in the target tree.
+ */
+@ToString(of={"filesScanned", "bytesCopied"})
+public class TreeSyncResult {
+
+    @Getter @Setter private List<String> createdDirs = new ArrayList<>();
+    @Getter @Setter private List<String> created = new ArrayList<>();
+    @Getter @Setter private List<String> updated = new ArrayList<>();
+    @Getter @Setter private List<String> deleted = new ArrayList<>();
+    @Getter @Setter private long filesScanned;
+    @Getter @Setter private long bytesCopied;
+
+    @JsonIgnore public boolean hasChanges () {
+        return !createdDirs.isEmpty() || !created.isEmpty() || !updated.isEmpty() || !deleted.isEmpty();
+    }
+
+    @JsonIgnore public int getFilesCopied () { return created.size() + updated.size(); }
+
+    public synchronized TreeSyncResult addAll (TreeSyncResult other) {
+        createdDirs.addAll(other.getCreatedDirs());
+        created.addAll(other.getCreated());
+        updated.addAll(other.getUpdated());
+        deleted.addAll(other.getDeleted());
+        filesScanned += other.getFilesScanned();
+        bytesCopied += other.getBytesCopied();
+        return this;
+    }
+
+}
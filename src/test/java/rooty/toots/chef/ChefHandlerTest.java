@@ -8,12 +8,19 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.Collections;
 
 import static org.cobbzilla.util.io.FileUtil.abs;
 import static org.cobbzilla.util.json.JsonUtil.fromJson;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static rooty.toots.chef.ChefSolo.SOLO_JSON;
 
 public class ChefHandlerTest {
@@ -83,6 +90,83 @@ public class ChefHandlerTest {
         assertTrue(chefSolo.containsCookbook("newapp"));
     }
 
+    @Test public void testAddRecipeWithHardlinkStaging () throws Exception {
+
+        handler.setStagingMode(ChefStagingMode.hardlink);
+        final ChefMessage message = new ChefMessage()
+                .setOperation(ChefOperation.ADD)
+                .setChefDir(abs(chefMessageDir))
+                .setCookbook("newapp");
+
+        handler.process(message);
+
+        final ChefSolo chefSolo = fromJson(new File(abs(chefHome) + "/solo.json"), ChefSolo.class);
+        assertTrue(chefSolo.containsCookbook("newapp"));
+
+        // the backup shares inodes with the new chef dir, but solo.json must have been copied-on-write
+        final File[] backups = tempDir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) { return name.startsWith(".backup"); }
+        });
+        assertEquals(1, backups.length);
+        final ChefSolo backupSolo = fromJson(new File(backups[0], SOLO_JSON), ChefSolo.class);
+        assertFalse(backupSolo.containsCookbook("newapp"));
+    }
+
+    @Test public void testAddAndRollbackWithGenerations () throws Exception {
+
+        handler.setUseGenerations(true);
+        final ChefMessage message = new ChefMessage()
+                .setOperation(ChefOperation.ADD)
+                .setChefDir(abs(chefMessageDir))
+                .setCookbook("newapp");
+
+        handler.process(message);
+        assertTrue(fromJson(new File(chefHome, SOLO_JSON), ChefSolo.class).containsCookbook("newapp"));
+        assertEquals(2, handler.getGenerationStore().getGenerations().size());
+
+        handler.process(new ChefMessage(ChefOperation.ROLLBACK));
+        assertFalse(fromJson(new File(chefHome, SOLO_JSON), ChefSolo.class).containsCookbook("newapp"));
+        assertFalse(new File(abs(chefHome) + "/" + CHEF_MESSAGE_FILES[0]).exists());
+        assertEquals(1, handler.getGenerationStore().getCurrent().getGeneration());
+    }
+
+    @Test public void testSwappedInChefDirOwnedByChefUser () throws Exception {
+
+        // chown'ing to another user needs root
+        final File probe = File.createTempFile("uid_probe_", ".tmp", tempDir);
+        assumeTrue(((Number) Files.getAttribute(probe.toPath(), "unix:uid", LinkOption.NOFOLLOW_LINKS)).intValue() == 0);
+
+        final String chefUser = "nobody";
+        handler = new DummyChefHandler(chefHome, chefUser) {
+            @Override protected boolean useSudo() { return true; }
+            @Override protected boolean isRoot() { return true; }
+        };
+        final ChefMessage message = new ChefMessage()
+                .setOperation(ChefOperation.ADD)
+                .setChefDir(abs(chefMessageDir))
+                .setCookbook("newapp");
+
+        handler.process(message);
+
+        assertTrue(fromJson(new File(chefHome, SOLO_JSON), ChefSolo.class).containsCookbook("newapp"));
+        assertEquals(chefUser, Files.getOwner(chefHome.toPath(), LinkOption.NOFOLLOW_LINKS).getName());
+    }
+
+    @Test public void testRunLogFailureDoesNotFailRun () throws Exception {
+        final ChefMessage message = new ChefMessage(ChefOperation.SYNCHRONIZE);
+
+        // disabled: no run log, no id
+        handler.setRunLogMaxMb(0);
+        assertNull(handler.newRunLog("test", message, Collections.<ChefMessage>emptyList()));
+        assertNull(message.getRunLogId());
+
+        // can't be started (runlogs is a file, not a dir): no run log, no id, and no exception
+        handler.setRunLogMaxMb(1);
+        FileUtil.toFile(new File(handler.getChefStateDir(), "runlogs"), "not a directory");
+        assertNull(handler.newRunLog("test", message, Collections.<ChefMessage>emptyList()));
+        assertNull(message.getRunLogId());
+    }
+
     @Test public void testRemoveRecipe () throws Exception {
 
         final ChefMessage message = new ChefMessage()
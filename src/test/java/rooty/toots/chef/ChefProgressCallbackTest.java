@@ -0,0 +1,38 @@
+package rooty.toots.chef;
+
+import org.cobbzilla.util.system.CommandProgressMarker;
+import org.junit.Test;
+import rooty.mock.MockRootyStatusManager;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChefProgressCallbackTest {
+
+    private static final Pattern PATTERN = Pattern.compile("marker");
+    public static final long TIMEOUT = 5000;
+
+    @Test public void testTrailingPublish () throws Exception {
+        final ChefMessage message = new ChefMessage(ChefOperation.ADD);
+        final ChefProgressCallback callback = new ChefProgressCallback(message, "test-queue", new MockRootyStatusManager())
+                .setMaxUpdatesPerSecond(2);
+
+        callback.updateProgress(new CommandProgressMarker(10, PATTERN, "first marker"));
+        assertTrue(message.getResults().contains("first marker"));
+
+        // inside the rate window: coalesced, not written yet
+        callback.updateProgress(new CommandProgressMarker(20, PATTERN, "second marker"));
+        assertFalse(message.getResults().contains("second marker"));
+
+        // ...but written once the window is up, with no later marker and no flush
+        final long start = System.currentTimeMillis();
+        while (!message.getResults().contains("second marker")) {
+            if (System.currentTimeMillis() - start > TIMEOUT) fail("coalesced marker was never published");
+            Thread.sleep(50);
+        }
+    }
+
+}
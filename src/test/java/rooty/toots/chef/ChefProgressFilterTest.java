@@ -0,0 +1,64 @@
+package rooty.toots.chef;
+
+import org.cobbzilla.util.system.CommandProgressCallback;
+import org.cobbzilla.util.system.CommandProgressMarker;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.assertEquals;
+
+public class ChefProgressFilterTest {
+
+    private final List<CommandProgressMarker> markers = new ArrayList<>();
+
+    private final CommandProgressCallback callback = new CommandProgressCallback() {
+        @Override public void updateProgress(CommandProgressMarker marker) { markers.add(marker); }
+    };
+
+    @Test public void testRecipeAndPatternIndicators () throws Exception {
+        final ChefProgressFilter filter = new ChefProgressFilter(callback)
+                .addIndicator("INFO: Chef-client pid", 1)
+                .addRecipeIndicator(new ChefSoloEntry("recipe[app1]"), 10)
+                .addRecipeIndicator(new ChefSoloEntry("recipe[app2::validate]"), 50)
+                .addIndicator("INFO: Chef Run complete", 100);
+
+        final String output = "[2015-01-01] INFO: Chef-client pid: 1234\n"
+                + "  * package[nginx] action install (app1::default line 3)\n"
+                + "  * service[nginx] action start (app1::default line 9)\n"
+                + "  * package[other] action install (unknown::default line 1)\n"
+                + "  * execute[check] action run (app2::validate line 2)\r\n"
+                + "[2015-01-01] INFO: Chef Run complete in 12.3 seconds\n";
+        filter.write(output.getBytes(UTF8cs));
+        filter.close();
+
+        assertEquals(4, markers.size());
+        assertEquals(1, markers.get(0).getPercent());
+        assertEquals(10, markers.get(1).getPercent());
+        assertEquals(50, markers.get(2).getPercent());
+        assertEquals(100, markers.get(3).getPercent());
+    }
+
+    @Test public void testBrokenTee () throws Exception {
+        final ChefProgressFilter filter = new ChefProgressFilter(callback)
+                .addIndicator("INFO: Chef Run complete", 100)
+                .setTee(new OutputStream() {
+                    @Override public void write(int b) throws IOException { throw new IOException("disk full"); }
+                });
+
+        // the tee failing must not stop progress tracking, or fail the command's output stream
+        filter.write("INFO: Chef Run complete in 1 seconds\n".getBytes(UTF8cs));
+        filter.close();
+        assertEquals(1, markers.size());
+    }
+
+    @Test public void testRecipeKey () throws Exception {
+        assertEquals("app1::default", ChefProgressFilter.recipeKey("* package[x] action install (app1::default line 3)"));
+        assertEquals(null, ChefProgressFilter.recipeKey("INFO: Chef-client pid: 1234"));
+    }
+
+}
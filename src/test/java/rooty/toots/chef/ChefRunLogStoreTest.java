@@ -0,0 +1,69 @@
+package rooty.toots.chef;
+
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChefRunLogStoreTest {
+
+    // 27 bytes each
+    public static final String LINE1 = "* a (app1::default line 1)\n";
+    public static final String LINE2 = "* b (app2::default line 2)\n";
+
+    private File tempDir;
+
+    @Before public void setUp () throws Exception { tempDir = FileUtil.createTempDir(getClass().getName()); }
+
+    @After public void cleanUp () throws Exception { FileUtils.deleteQuietly(tempDir); }
+
+    @Test public void testSegmentsAndSlices () throws Exception {
+        // 10-byte segments, at most 3 of them per run
+        final ChefRunLogStore store = new ChefRunLogStore(tempDir, 30, 2, 10);
+        final ChefRunLog runLog = store.newRun("test");
+        final String output = LINE1 + LINE2;
+        runLog.write(output.getBytes(UTF8cs));
+        runLog.close();
+
+        // 54 bytes = segments 0-5; only 3-5 are kept
+        final ChefRunLogIndex index = store.getRun(runLog.getId());
+        assertTrue(index.isFinished());
+        assertEquals(54, index.getTotalBytes());
+        assertEquals(30, index.getFirstOffset());
+        assertFalse(store.segmentFile(runLog.getDir(), 2).exists());
+        assertTrue(store.segmentFile(runLog.getDir(), 3).exists());
+
+        // reads across segment boundaries, and never before the first kept offset
+        assertEquals(output.substring(35, 45), store.read(runLog.getId(), 35, 10));
+        assertEquals(output.substring(30, 35), store.read(runLog.getId(), 0, 5));
+        assertEquals(output.substring(50), store.read(runLog.getId(), 50, 100));
+
+        // recipes are indexed by offset; app1's output has been dropped, app2's partly
+        final ChefRunLogRecipe app2 = index.getRecipe("app2::default");
+        assertEquals(27, app2.getStartOffset());
+        assertEquals(54, app2.getEndOffset());
+        assertEquals(27, index.getRecipe("app1::default").getEndOffset());
+        assertEquals(output.substring(30), store.readRecipe(runLog.getId(), "app2::default"));
+    }
+
+    @Test public void testPruneRuns () throws Exception {
+        final ChefRunLogStore store = new ChefRunLogStore(tempDir, 1024, 2);
+        for (int i = 0; i < 3; i++) store.newRun("run" + i).close();
+        assertEquals(2, store.getRuns().size());
+        assertEquals("run2", store.getRuns().get(0).getLabel());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroMaxBytesRejected () throws Exception {
+        new ChefRunLogStore(tempDir, 0, 2);
+    }
+
+}
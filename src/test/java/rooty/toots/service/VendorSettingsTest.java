@@ -15,10 +15,13 @@ import rooty.mock.MockRootyStatusManager;
 import rooty.toots.vendor.*;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 import static org.cobbzilla.util.io.FileUtil.abs;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class VendorSettingsTest {
@@ -72,18 +75,28 @@ public class VendorSettingsTest {
         assertEquals("databag/number", values[3].getPath());
         assertEquals(VendorSettingHandler.VENDOR_DEFAULT, values[3].getValue());
 
+        // foo and number are ssh-blocking settings still at their vendor defaults
+        final VendorDefaultIndex defaultIndex = VendorDefaultIndex.forChefDir(handler.getChefDir());
+        assertEquals(2, defaultIndex.count());
+        assertEquals(Arrays.asList(cookbook+"/databag/foo", cookbook+"/databag/number"), listDefaults(cookbook));
+        assertTrue(listDefaults(cookbook+"_other").isEmpty());
+
         // update foo and number
         final String fooValue = randomAlphanumeric(10);
         updateRequest = new VendorSettingUpdateRequest("databag/foo", fooValue).setCookbook(cookbook);
         updateRequest.initUuid();
         handler.process(updateRequest);
         assertTrue(Boolean.valueOf(updateRequest.getResults()));
+        assertEquals(1, defaultIndex.count());
+        assertEquals(Arrays.asList(cookbook+"/databag/number"), listDefaults(cookbook));
 
         final int numValue = (int) (System.currentTimeMillis() % 3498345);
         updateRequest = new VendorSettingUpdateRequest("databag/number", String.valueOf(numValue)).setCookbook(cookbook);
         updateRequest.initUuid();
         handler.process(updateRequest);
         assertTrue(Boolean.valueOf(updateRequest.getResults()));
+        assertFalse(defaultIndex.hasDefaults());
+        assertTrue(listDefaults(null).isEmpty());
 
         // re-list settings, now we should see new values for foo and number
         listRequest.initUuid();
@@ -100,6 +113,13 @@ public class VendorSettingsTest {
         assertEquals(String.valueOf(numValue), values[3].getValue());
     }
 
+    private List<String> listDefaults(String cookbook) throws Exception {
+        final VendorSettingRequest request = new VendorDefaultsRequest(cookbook);
+        request.initUuid();
+        handler.process(request);
+        return Arrays.asList(JsonUtil.fromJson(request.getResults(), String[].class));
+    }
+
     public static class DummyDatabag {
         @Getter @Setter private int id;
         @Getter @Setter private String foo;
@@ -0,0 +1,101 @@
+package rooty.toots.util;
+
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentScannerTest {
+
+    public static final String SECRET = "vendor-default-secret";
+
+    private File tempDir;
+
+    @Before public void setUp () throws Exception { tempDir = FileUtil.createTempDir(getClass().getName()); }
+
+    @After public void cleanUp () throws Exception { FileUtils.deleteQuietly(tempDir); }
+
+    private File write(String path, String data) throws Exception {
+        final File f = new File(abs(tempDir) + "/" + path);
+        FileUtil.mkdirOrDie(f.getParentFile());
+        FileUtil.toFile(f, data);
+        return f;
+    }
+
+    @Test public void testIndexOf () throws Exception {
+        final ContentScanner.Needle needle = new ContentScanner.Needle("abcab".getBytes(UTF8cs));
+        final ByteBuffer buffer = ByteBuffer.wrap("xxabcabcabyyabcab".getBytes(UTF8cs));
+        assertEquals(2, needle.indexOf(buffer, 0));
+        assertEquals(5, needle.indexOf(buffer, 3));
+        assertEquals(12, needle.indexOf(buffer, 6));
+        assertEquals(-1, needle.indexOf(buffer, 13));
+    }
+
+    @Test public void testFindAndReplace () throws Exception {
+        final File sshConfig = write("etc/ssh/config", "key = " + SECRET + "\nother = " + SECRET + "\n");
+        final File profile = write("home/user/.profile", "export KEY=" + SECRET);
+        final File excluded = write("home/user/backup/config", SECRET);
+        write("etc/unrelated", "nothing to see here");
+        final File binary = write("etc/binary", "\u0000" + SECRET);
+
+        final ContentScanner scanner = new ContentScanner()
+                .addRoot(new File(tempDir, "etc"))
+                .addRoot(new File(tempDir, "home"))
+                .addExclude(new File(tempDir, "home/user/backup"));
+
+        ContentScanResult result = scanner.find(SECRET);
+        assertEquals(3, result.getMatched().size());
+        assertTrue(result.getMatched().contains(sshConfig));
+        assertTrue(result.getMatched().contains(profile));
+        assertTrue(result.getMatched().contains(binary));
+        assertEquals(1, result.getFilesSkipped());
+
+        result = scanner.replace(SECRET, "new-value");
+        assertEquals(3, result.getMatched().size());
+        assertEquals(2, result.getReplaced().size());
+        assertFalse(result.getReplaced().contains(binary));
+        assertEquals("key = new-value\nother = new-value\n", FileUtil.toString(sshConfig));
+        assertEquals("export KEY=new-value", FileUtil.toString(profile));
+        assertEquals(SECRET, FileUtil.toString(excluded));
+
+        // only the binary file still has it
+        result = scanner.find(SECRET);
+        assertEquals(1, result.getMatched().size());
+        assertTrue(result.getMatched().contains(binary));
+
+        result = scanner.setSkipBinary(false).replace(SECRET, "new-value");
+        assertTrue(result.getReplaced().contains(binary));
+        assertFalse(scanner.find(SECRET).hasMatches());
+    }
+
+    @Test public void testSkippedFilesAreMatchedNotReplaced () throws Exception {
+        final File binary = write("etc/binary", "\u0000" + SECRET);
+        final File large = write("etc/large", "0123456789" + SECRET + "0123456789" + SECRET);
+        final String binaryContents = FileUtil.toString(binary);
+
+        final ContentScanner scanner = new ContentScanner()
+                .addRoot(new File(tempDir, "etc"))
+                .setMaxFileSize(32)
+                .setRecordOffsets(true);
+
+        final ContentScanResult result = scanner.replace(SECRET, "new-value");
+        assertEquals(2, result.getMatched().size());
+        assertTrue(result.getReplaced().isEmpty());
+        assertEquals(2, result.getFilesSkipped());
+        assertEquals(binaryContents, FileUtil.toString(binary));
+        assertEquals("0123456789" + SECRET + "0123456789" + SECRET, FileUtil.toString(large));
+        assertEquals(Arrays.asList(10L, 20L + SECRET.length()), result.getOffsets().get(large));
+    }
+
+}
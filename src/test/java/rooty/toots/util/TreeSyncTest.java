@@ -0,0 +1,76 @@
+package rooty.toots.util;
+
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TreeSyncTest {
+
+    private File tempDir;
+    private File source;
+    private File target;
+
+    @Before public void setUp () throws Exception {
+        tempDir = FileUtil.createTempDir(getClass().getName());
+        source = new File(tempDir, "source");
+        target = new File(tempDir, "target");
+        write(source, "cookbooks/app1/recipes/default.rb", "package 'app1'");
+        write(source, "cookbooks/app1/recipes/lib.rb", "# lib");
+        write(source, "data_bags/app1/init.json", "{\"id\": \"init\"}");
+    }
+
+    @After public void cleanUp () throws Exception { FileUtils.deleteQuietly(tempDir); }
+
+    private File write(File base, String path, String data) throws Exception {
+        final File f = new File(abs(base) + "/" + path);
+        FileUtil.mkdirOrDie(f.getParentFile());
+        FileUtil.toFile(f, data);
+        return f;
+    }
+
+    @Test public void testIncrementalSync () throws Exception {
+
+        final TreeSync treeSync = new TreeSync().setIndex(new DigestIndex(new File(tempDir, "index.json")));
+
+        // first sync copies everything
+        TreeSyncResult result = treeSync.sync(source, target);
+        assertEquals(3, result.getCreated().size());
+        assertEquals("package 'app1'", FileUtil.toString(new File(target, "cookbooks/app1/recipes/default.rb")));
+
+        // second sync is a noop
+        result = treeSync.sync(source, target);
+        assertFalse(result.hasChanges());
+        assertEquals(3, result.getFilesScanned());
+
+        // touching a file without changing it does not copy it
+        final File lib = new File(source, "cookbooks/app1/recipes/lib.rb");
+        assertTrue(lib.setLastModified(lib.lastModified() - 60000));
+        result = treeSync.sync(source, target);
+        assertFalse(result.hasChanges());
+        assertEquals(lib.lastModified(), new File(target, "cookbooks/app1/recipes/lib.rb").lastModified());
+
+        // changing a file copies only that file
+        write(source, "cookbooks/app1/recipes/default.rb", "package 'app1-new'");
+        result = treeSync.sync(source, target);
+        assertEquals(1, result.getUpdated().size());
+        assertEquals(0, result.getCreated().size());
+        assertEquals("package 'app1-new'", FileUtil.toString(new File(target, "cookbooks/app1/recipes/default.rb")));
+
+        // extraneous files are kept, unless pruning
+        write(target, "data_bags/app1/extra.json", "{}");
+        assertFalse(treeSync.sync(source, target).hasChanges());
+        result = treeSync.setPrune(true).sync(source, target);
+        assertEquals(1, result.getDeleted().size());
+        assertFalse(new File(target, "data_bags/app1/extra.json").exists());
+    }
+
+}